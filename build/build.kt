@@ -24,6 +24,9 @@ val NknSdk by project {
     libraryDependencies add { dependency("net.i2p.crypto:eddsa:0.3.0") } // Crypto, Ed25519
     libraryDependencies add { dependency("org.bouncycastle:bcprov-jdk15on:1.64") } // Crypto, The rest
 
+    libraryDependencies add { JUnitAPI } // Testing
+    libraryDependencies add { JUnitEngine }
+
     publishArtifacts set { artifacts(NoClassifier, includeSources = true, includeDocumentation = false) }
 
 }
@@ -2,9 +2,14 @@ package jsmith.nknsdk.client;
 
 import com.google.protobuf.ByteString;
 import jsmith.nknsdk.network.ClientTunnel;
+import org.java_websocket.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 
 /**
  *
@@ -17,6 +22,8 @@ public class NKNClient {
     private final SimpleMessagesProtocol simpleMessagesProtocol;
     private final Identity identity;
     private final SessionProtocol sessionProtocol;
+    private final ExecutorService defaultCallbackExecutor = Executors.newFixedThreadPool(5, new NamedThreadFactory("NKNClientCallbacks"));
+    private volatile Executor callbackExecutor = defaultCallbackExecutor;
 
     public NKNClient(Identity identity) {
         this.identity = identity;
@@ -33,6 +40,7 @@ public class NKNClient {
     public void close() throws InterruptedException {
         sessionProtocol.close();
         clientTunnel.close();
+        defaultCallbackExecutor.shutdown();
     }
 
     public SimpleMessagesProtocol simpleMessagesProtocol() {
@@ -45,6 +53,20 @@ public class NKNClient {
 
 
 
+    /**
+     * Executor used to complete message futures and to run message listeners, shared by all connections and multiclients of this client.
+     * Can be for example a virtual-thread-per-task executor, or {@code Runnable::run} to run callbacks directly on the network threads.
+     * Supplied executor is not shut down when the client closes.
+     * @param executor executor to use, or null to use the default 5 thread pool
+     */
+    public NKNClient setCallbackExecutor(Executor executor) {
+        this.callbackExecutor = executor == null ? defaultCallbackExecutor : executor;
+        return this;
+    }
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
     private EncryptionLevel encryptionLevel = EncryptionLevel.CONVERT_MULTICAST_TO_UNICAST_AND_ENCRYPT;
     public NKNClient setEncryptionLevel(EncryptionLevel level) {
         this.encryptionLevel = level;
@@ -65,6 +87,56 @@ public class NKNClient {
 
 
 
+    private int outboundQueueCapacity = 16;
+    /**
+     * Capacity of the per-connection outbound message queue. Applied when the client (or its multiclient) starts.
+     */
+    public NKNClient setOutboundQueueCapacity(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Queue capacity must be positive number");
+        this.outboundQueueCapacity = capacity;
+        return this;
+    }
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    private OutboundBackpressurePolicy backpressurePolicy = OutboundBackpressurePolicy.BLOCK;
+    public NKNClient setOutboundBackpressurePolicy(OutboundBackpressurePolicy policy) {
+        if (policy == null) throw new NullPointerException("Policy cannot be null");
+        this.backpressurePolicy = policy;
+        return this;
+    }
+    public OutboundBackpressurePolicy getOutboundBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    private int outboundBatchMaxMessages = 1, outboundBatchMaxBytes = 256 * 1024, outboundBatchLingerMicros = 0;
+    /**
+     * Lets the outbound worker coalesce queued messages into a single write to the node.
+     * @param maxMessages maximum messages written at once, 1 disables batching
+     * @param maxBytes batch is not extended once it holds this many bytes
+     * @param lingerMicros how long to wait for more messages when the batch is not full, 0 to only take what is already queued
+     */
+    public NKNClient setOutboundBatching(int maxMessages, int maxBytes, int lingerMicros) {
+        if (maxMessages < 1) throw new IllegalArgumentException("Max messages in batch must be positive number");
+        if (maxBytes < 0 || lingerMicros < 0) throw new IllegalArgumentException("Batch limits must be non-negative numbers");
+        this.outboundBatchMaxMessages = maxMessages;
+        this.outboundBatchMaxBytes = maxBytes;
+        this.outboundBatchLingerMicros = lingerMicros;
+        return this;
+    }
+    public int getOutboundBatchMaxMessages() {
+        return outboundBatchMaxMessages;
+    }
+    public int getOutboundBatchMaxBytes() {
+        return outboundBatchMaxBytes;
+    }
+    public int getOutboundBatchLingerMicros() {
+        return outboundBatchLingerMicros;
+    }
+
+
+
     public ByteString getCurrentSigChainBlockHash() {
         return clientTunnel.currentSigChainBlockHash();
     }
@@ -80,6 +152,20 @@ public class NKNClient {
 
     }
 
+    public enum OutboundBackpressurePolicy {
+
+        /** Sending thread waits until there is space in the outbound queue */
+        BLOCK,
+        /** Returned futures are completed with {@link NKNClientException.OutboundQueueFull} */
+        FAIL_FAST,
+        /**
+         * Oldest queued message is dropped, its futures are completed with {@link NKNClientException.MessageDropped}.
+         * Queued session packets are never dropped, if the queue holds nothing else, the sending thread waits as with {@link #BLOCK}
+         */
+        DROP_OLDEST
+
+    }
+
     public enum PeerEncryptionRequirement {
 
         ON_NON_ENCRYPTED_MESSAGE___ALLOW_NONE_DROP_ALL,
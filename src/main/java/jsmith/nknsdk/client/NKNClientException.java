@@ -26,6 +26,25 @@ public class NKNClientException extends Exception {
 
     }
 
+    public static class OutboundQueueFull extends NKNClientException {
+
+        public OutboundQueueFull() {
+            super("Outbound message queue is full");
+        }
+
+    }
+
+    public static class MessageDropped extends NKNClientException {
+
+        public final ByteString messageID;
+
+        public MessageDropped(ByteString messageID) {
+            super("Message was dropped from a full outbound queue");
+            this.messageID = messageID;
+        }
+
+    }
+
     public static class UnknownObjectType extends Error {
 
         public UnknownObjectType(String message) {
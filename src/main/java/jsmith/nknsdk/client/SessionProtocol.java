@@ -1,9 +1,13 @@
 package jsmith.nknsdk.client;
 
+import jsmith.nknsdk.network.AimdCongestionController;
+import jsmith.nknsdk.network.CongestionController;
+import jsmith.nknsdk.network.session.PathScheduler;
 import jsmith.nknsdk.network.session.Session;
 import jsmith.nknsdk.network.session.SessionHandler;
 
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  *
@@ -17,13 +21,33 @@ public class SessionProtocol {
     }
 
     public Session dialSession(String destinationFullIdentifier) throws NKNClientException {
-        return handler.dialSession(destinationFullIdentifier, SessionHandler.DEFAULT_MULTICLIENTS, null, SessionHandler.MAX_MTU, SessionHandler.MAX_WIN_SIZE);
+        return handler.dialSession(destinationFullIdentifier, SessionHandler.DEFAULT_MULTICLIENTS, null, SessionHandler.DEFAULT_MTU, SessionHandler.MAX_WIN_SIZE);
     }
 
+    /**
+     * @param maxMtu largest chunk size, values above {@link SessionHandler#DEFAULT_MTU} enable MTU probing up to it
+     *               if the remote accepts them as well, at most {@link SessionHandler#MAX_MTU}
+     */
     public Session dialSession(String destinationFullIdentifier, int multiclients, String[] targetPrefixes, int maxMtu, int maxWindowSize) throws NKNClientException {
         return handler.dialSession(destinationFullIdentifier, multiclients, targetPrefixes, maxMtu, maxWindowSize);
     }
 
+    /**
+     * @param congestionControl creates window controller for each multiclient path of the session,
+     *                          for example {@code AimdCongestionController::new}, {@code CubicCongestionController::new} or {@code DelayBasedCongestionController::new}
+     */
+    public Session dialSession(String destinationFullIdentifier, int multiclients, String[] targetPrefixes, int maxMtu, int maxWindowSize, Supplier<CongestionController> congestionControl) throws NKNClientException {
+        return handler.dialSession(destinationFullIdentifier, multiclients, targetPrefixes, maxMtu, maxWindowSize, congestionControl);
+    }
+
+    /**
+     * @param earlyData first bytes to send, delivered together with the session request to save a round trip,
+     *                  at most {@link SessionHandler#MAX_EARLY_DATA} bytes
+     */
+    public Session dialSession(String destinationFullIdentifier, byte[] earlyData) throws NKNClientException {
+        return handler.dialSession(destinationFullIdentifier, SessionHandler.DEFAULT_MULTICLIENTS, null, SessionHandler.DEFAULT_MTU, SessionHandler.MAX_WIN_SIZE, AimdCongestionController::new, earlyData);
+    }
+
     public void onSessionRequest(Function<Session, Boolean> accept) throws NKNClientException {
         handler.onSessionRequest(accept);
     }
@@ -37,6 +61,26 @@ public class SessionProtocol {
     public void setIncomingPreferredWinSize(int preferredWinSize) {
         handler.setIncomingPreferredWinSize(preferredWinSize);
     }
+    public void setIncomingCongestionControl(Supplier<CongestionController> congestionControl) {
+        handler.setIncomingCongestionControl(congestionControl);
+    }
+
+    /**
+     * Compresses data of newly dialed and accepted sessions with deflate, if the remote supports it as well.
+     * Worth it for text-like traffic, the cpu cost is wasted on already compressed data.
+     */
+    public void setCompression(boolean compression) {
+        handler.setCompression(compression);
+    }
+
+    /**
+     * @param pathScheduler chooses multiclient path for each outgoing packet of all sessions, for example
+     *                      {@link jsmith.nknsdk.network.session.WeightedPathScheduler} (default),
+     *                      {@link jsmith.nknsdk.network.session.LowestRttPathScheduler} or {@link jsmith.nknsdk.network.session.RandomPathScheduler}
+     */
+    public void setPathScheduler(PathScheduler pathScheduler) {
+        handler.setPathScheduler(pathScheduler);
+    }
 
 
     void close() throws InterruptedException {
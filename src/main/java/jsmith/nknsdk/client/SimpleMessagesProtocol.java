@@ -90,6 +90,22 @@ public class SimpleMessagesProtocol {
         return cmWorker.sendMessageAsync(Collections.singletonList(destinationFullIdentifier), replyTo, message).get(0);
     }
 
+    /**
+     * Like {@link #sendAsync(String, ByteString, Object)}, but never waits for space in the outbound queue.
+     * If the queue is full, returned future is completed with {@link NKNClientException.OutboundQueueFull}
+     */
+    public CompletableFuture<ReceivedMessage> trySendAsync(String destinationFullIdentifier, ByteString replyTo, Object message) {
+        return cmWorker.sendMessageAsync(Collections.singletonList(destinationFullIdentifier), replyTo, message, true).get(0);
+    }
+
+    public List<CompletableFuture<ReceivedMessage>> trySendMulticastAsync(List<String> destinationFullIdentifier, ByteString replyTo, Object message) {
+        return cmWorker.sendMessageAsync(destinationFullIdentifier, replyTo, message, true);
+    }
+
+    public int getOutboundQueueRemainingCapacity() {
+        return cmWorker.getOutboundQueueRemainingCapacity();
+    }
+
     public List<CompletableFuture<ReceivedMessage>> sendTextMulticastAsync(String[] destinationFullIdentifier, String message) {
         return sendTextMulticastAsync(destinationFullIdentifier, null, message);
     }
@@ -0,0 +1,44 @@
+package jsmith.nknsdk.network;
+
+/**
+ * Additive increase, multiplicative decrease. Window grows by one with every ack and is halved on every loss event.
+ */
+public class AimdCongestionController implements CongestionController {
+
+    private final Object lock = new Object();
+    private volatile int window;
+    private final LossEpoch lossEpoch = new LossEpoch();
+
+    public AimdCongestionController() {
+        this(ClientMessageWorker.DEFAULT_INITIAL_CONNECTION_WINSIZE);
+    }
+
+    public AimdCongestionController(int initialWindow) {
+        this.window = clamp(initialWindow);
+    }
+
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public void onAck(int rttMs) {
+        synchronized (lock) {
+            window = clamp(window + 1);
+        }
+    }
+
+    @Override
+    public void onLoss(int srttMs) {
+        synchronized (lock) {
+            if (!lossEpoch.onLoss(System.currentTimeMillis(), srttMs)) return;
+            window = clamp(window / 2);
+        }
+    }
+
+    static int clamp(int window) {
+        return Math.min(ClientMessageWorker.MAX_CONNECTION_WINSIZE, Math.max(ClientMessageWorker.MIN_CONNECTION_WINSIZE, window));
+    }
+
+}
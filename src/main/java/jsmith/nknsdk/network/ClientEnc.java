@@ -139,6 +139,9 @@ public class ClientEnc {
             final String dest = destinations.get(0);
             final byte[] nonce = TweetNaclFast.randombytes(24);
             final byte[] sharedKey = wallet.getSharedKey(dest);
+            if (sharedKey == null) {
+                throw new NKNClientException("Failed to compute shared key for destination");
+            }
             final byte[] msg = message.toByteArray();
 
             byte[] bytes = new TweetNaclFast.SecretBox(sharedKey).box(msg, nonce);
@@ -160,6 +163,9 @@ public class ClientEnc {
         if (enc.getEncrypted()) {
 
             final byte[] sharedKey = wallet.getSharedKey(from);
+            if (sharedKey == null) {
+                throw new NKNClientException("Failed to compute shared key for sender");
+            }
             final byte[] ciphertext = enc.getPayload().toByteArray();
             final byte[] nonce = enc.getNonce().toByteArray();
 
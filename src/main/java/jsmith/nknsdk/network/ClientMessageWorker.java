@@ -8,14 +8,16 @@ import jsmith.nknsdk.client.SimpleMessagesProtocol;
 import jsmith.nknsdk.network.proto.MessagesP;
 import jsmith.nknsdk.network.session.SessionHandler;
 import jsmith.nknsdk.utils.Crypto;
+import org.java_websocket.util.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  *
@@ -28,17 +30,18 @@ public class ClientMessageWorker {
     public static final int DEFAULT_INITIAL_CONNECTION_WINSIZE = 16;
     public static final int MIN_CONNECTION_WINSIZE = 1;
     public static final int INITIAL_RTO = ConnectionProvider.messageAckTimeoutMS();
+    public static final int MIN_RTO = 200;
+    public static final int MAX_RTO = 60000;
 
     private final ClientTunnel ct;
 
-    private final BlockingQueue<MessageJob> outboundQ = new ArrayBlockingQueue<>(16);
-    private final BlockingQueue<MessageJob> timerQ = new PriorityBlockingQueue<>(100, (j1, j2) -> (int)(j1.timeoutAt - j2.timeoutAt));
+    private volatile BlockingQueue<MessageJob> outboundQ = null;
     private final ConcurrentHashMap<ByteString, MessageJob> inboundQ = new ConcurrentHashMap<>();
 
-    private final Thread outboundThread, timerThread;
+    private final Thread outboundThread;
+    private final ScheduledThreadPoolExecutor timer;
 
     private boolean running = false;
-    private ExecutorService events;
 
     private final SessionHandler sessionHandler;
 
@@ -46,49 +49,79 @@ public class ClientMessageWorker {
         this.ct = ct;
         this.sessionHandler = sessionHandler;
 
-        events = Executors.newFixedThreadPool(5);
-
         outboundThread = new Thread("OutboundMessageWorker-" + myId) {
             @Override
             public void run() {
                 while(running || !outboundQ.isEmpty()) {
                     try {
-                        final MessageJob job = outboundQ.take();
+                        final MessageJob first = outboundQ.take();
                         ct.messageHold.await();
 
-                        job.timeoutAt = System.currentTimeMillis() + job.timeoutIn;
-                        if (!job.noreplyQ) {
-                            timerQ.put(job);
-                            inboundQ.put(job.messageID, job);
+                        final List<MessageJob> batch = drainBatch(first);
+                        for (MessageJob job : batch) {
+                            if (!job.noreplyQ) {
+                                inboundQ.put(job.messageID, job);
+                                job.timeout = timer.schedule(() -> onAckTimeout(job), job.timeoutIn, TimeUnit.MILLISECONDS);
+                            }
                         }
 
-                        ct.ws.sendPacket(job.payload);
+                        if (batch.size() == 1) {
+                            ct.ws.sendPacket(first.payload);
+                        } else {
+                            final ArrayList<ByteString> payloads = new ArrayList<>(batch.size());
+                            for (MessageJob job : batch) payloads.add(job.payload);
+                            ct.ws.sendPackets(payloads);
+                        }
 
                     } catch (InterruptedException ignored) {}
                 }
             }
         };
 
-        timerThread = new Thread("TimerMessageWorker-" + myId) {
-            @Override
-            public void run() {
-                while (running || !timerQ.isEmpty() || !outboundQ.isEmpty()) {
-                    try {
-                        final MessageJob job = timerQ.take();
-                        Thread.sleep(Math.max(job.timeoutAt - System.currentTimeMillis(), 0));
+        timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("TimerMessageWorker-" + myId));
+        timer.setRemoveOnCancelPolicy(true);
 
-                        for (CompletableFuture<SimpleMessagesProtocol.ReceivedMessage> p : job.promise) {
-                            events.submit(() -> p.completeExceptionally(new NKNClientException.MessageAckTimeout(job.messageID)));
-                        }
+    }
 
-                        inboundQ.remove(job.messageID);
+    private List<MessageJob> drainBatch(MessageJob first) {
+        final int maxMessages = ct.forClient.getOutboundBatchMaxMessages();
+        if (maxMessages <= 1) return Collections.singletonList(first);
 
-                    } catch (InterruptedException ignored) {}
+        final int maxBytes = ct.forClient.getOutboundBatchMaxBytes();
+        final long lingerUntil = System.nanoTime() + ct.forClient.getOutboundBatchLingerMicros() * 1000L;
+
+        final ArrayList<MessageJob> batch = new ArrayList<>(Math.min(maxMessages, 64));
+        batch.add(first);
+        int bytes = first.payload.size();
+
+        while (batch.size() < maxMessages && bytes < maxBytes) {
+            MessageJob next = outboundQ.poll();
+            if (next == null) {
+                final long linger = lingerUntil - System.nanoTime();
+                if (linger <= 0) break;
+                try {
+                    next = outboundQ.poll(linger, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    break; // Send what we already have
                 }
+                if (next == null) break;
             }
+            batch.add(next);
+            bytes += next.payload.size();
+        }
+        return batch;
+    }
 
-        };
+    private Executor events() {
+        return ct.forClient.getCallbackExecutor();
+    }
+
+    private void onAckTimeout(MessageJob job) {
+        if (!inboundQ.remove(job.messageID, job)) return; // Already replied to by all destinations
 
+        for (CompletableFuture<SimpleMessagesProtocol.ReceivedMessage> p : job.promise) {
+            events().execute(() -> p.completeExceptionally(new NKNClientException.MessageAckTimeout(job.messageID)));
+        }
     }
 
     void onInboundMessage(String from, MessagesP.EncryptedMessage encryptedMessage) {
@@ -134,16 +167,20 @@ public class ClientMessageWorker {
             final MessageJob job = inboundQ.get(replyTo);
             if (job != null) {
                 for (int i = 0; i < job.destination.size(); i++) {
-                    if (job.destination.get(i).equalsIgnoreCase(from)) {
+                    if (job.destination.get(i).equalsIgnoreCase(from) && job.onReplied(i)) {
                         final CompletableFuture<SimpleMessagesProtocol.ReceivedMessage> p = job.promise.get(i);
-                        events.submit(() -> p.complete(receivedMessage));
+                        events().execute(() -> p.complete(receivedMessage));
                     }
                 }
+                if (job.isReplied() && inboundQ.remove(replyTo, job)) {
+                    final ScheduledFuture<?> timeout = job.timeout;
+                    if (timeout != null) timeout.cancel(false);
+                }
             }
 
             if (ct.forClient.simpleMessagesProtocol().getOnMessageListener() != null) {
                 if (type != MessagesP.PayloadType.ACK) {
-                    events.submit(() -> {
+                    events().execute(() -> {
                         Object response = ct.forClient.simpleMessagesProtocol().getOnMessageListener().apply(receivedMessage);
                         if (response != null) {
                             sendMessageAsync(Collections.singletonList(from), messageID, response);
@@ -165,8 +202,8 @@ public class ClientMessageWorker {
 
 
     public void start() {
+        outboundQ = new ArrayBlockingQueue<>(ct.forClient.getOutboundQueueCapacity());
         running = true;
-        timerThread.start();
         outboundThread.start();
     }
 
@@ -174,98 +211,113 @@ public class ClientMessageWorker {
     public void close() {
         running = false;
         outboundThread.interrupt();
-        timerThread.interrupt();
 
         try {
             outboundThread.join();
         } catch (InterruptedException ignored) {}
+        timer.shutdown(); // Pending timeouts are still delivered
         try {
-            timerThread.join();
+            timer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         } catch (InterruptedException ignored) {}
-        events.shutdown();
     }
 
 
 
-    private final Object winSizeLock = new Object();
-    private final HashMap<String, Integer> maxWinSize = new HashMap<>();
-    private final HashMap<String, Integer> usedWinSize = new HashMap<>();
-    private final HashMap<String, Integer> trackedRto = new HashMap<>();
-    private final ConcurrentHashMap<String, Object> trackedLock = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TrackedWinSize> trackedWinSize = new ConcurrentHashMap<>();
 
     public void trackWinSize(String remote, int initialMaxWinSize) {
-        synchronized (winSizeLock) {
-            maxWinSize.putIfAbsent(remote, Math.min(MAX_CONNECTION_WINSIZE, Math.max(MIN_CONNECTION_WINSIZE, initialMaxWinSize)));
-            usedWinSize.putIfAbsent(remote, 0);
-            trackedRto.putIfAbsent(remote, INITIAL_RTO);
-            trackedLock.putIfAbsent(remote, new Object());
-        }
+        trackWinSize(remote, new AimdCongestionController(initialMaxWinSize));
+    }
+    /**
+     * Starts tracking window of given remote. Sessions use a key unique to the session instead of the remote address,
+     * so every session has its own congestion state on each connection
+     */
+    public void trackWinSize(String remote, CongestionController congestionController) {
+        trackedWinSize.put(remote, new TrackedWinSize(congestionController));
+    }
+    public void untrackWinSize(String remote) {
+        trackedWinSize.remove(remote);
     }
     public boolean isWinSizeAvailable(String remote) {
-        synchronized (winSizeLock) {
-            int max = maxWinSize.getOrDefault(remote, -1);
-            if (max == -1) return true; // We don't track winsize for this connection
-            return usedWinSize.get(remote) < max;
-        }
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        return winSize == null || winSize.isAvailable(); // We don't track winsize for untracked connection
     }
     public void onWinsizeAckTimeout(String remote) {
-        synchronized (winSizeLock) {
-            if (!maxWinSize.containsKey(remote)) return;
-            usedWinSize.put(remote, Math.max(0, usedWinSize.get(remote) - 1));
-            maxWinSize.put(remote, Math.max(MIN_CONNECTION_WINSIZE, maxWinSize.get(remote) / 2));
-        }
-        final Object remoteLock = trackedLock.get(remote);
-        synchronized (remoteLock) {
-            remoteLock.notify();
-        }
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        if (winSize == null) return;
+        winSize.onTimeout();
+    }
+    /**
+     * Packet is given up on because its connection broke, releases its window slot without treating it as congestion
+     */
+    public void onWinsizeDropped(String remote) {
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        if (winSize == null) return;
+        winSize.release();
+    }
+    /**
+     * Packet is considered lost based on acks of later packets, releases its window slot without backing off the rto
+     */
+    public void onWinsizeFastRetransmit(String remote) {
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        if (winSize == null) return;
+        winSize.onFastRetransmit();
     }
     public void onWinsizeAckReceived(String remote, int rttMs) {
-        synchronized (winSizeLock) {
-            if (!maxWinSize.containsKey(remote)) return;
-            usedWinSize.put(remote, Math.max(0, usedWinSize.get(remote) - 1));
-            maxWinSize.put(remote, Math.min(MAX_CONNECTION_WINSIZE, maxWinSize.get(remote) + 1));
-
-            int rto = trackedRto.get(remote);
-            //noinspection IntegerDivisionInFloatingPointContext
-            trackedRto.put(remote, (int) (rto + Math.tanh((3 * rttMs - rto) / 1000) * 100));
-        }
-        final Object remoteLock = trackedLock.get(remote);
-        synchronized (remoteLock) {
-            remoteLock.notify();
-        }
+        onWinsizeAckReceived(remote, rttMs, false);
+    }
+    /**
+     * @param retransmitted whether the acked packet was sent more than once, in which case the rtt sample is ambiguous and is ignored (Karn's algorithm)
+     */
+    public void onWinsizeAckReceived(String remote, int rttMs, boolean retransmitted) {
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        if (winSize == null) return;
+        winSize.onAck(retransmitted ? -1 : rttMs);
     }
     public void sendWinsizeTrackedPacket(String remote) {
-        final Object remoteLock = trackedLock.get(remote);
-        if (remoteLock == null) return;
-        synchronized (remoteLock) {
-            while(!isWinSizeAvailable(remote)) {
-                try {
-                    remoteLock.wait();
-                } catch (InterruptedException ignored) {}
-            }
-        }
-
-        synchronized (winSizeLock) {
-            if (usedWinSize.containsKey(remote)) {
-                usedWinSize.put(remote, usedWinSize.get(remote) + 1);
-            }
-        }
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        if (winSize == null) return;
+        winSize.acquire();
     }
     public int getTrackedRto(String remote) {
-        synchronized (winSizeLock) {
-            return trackedRto.getOrDefault(remote, ConnectionProvider.messageAckTimeoutMS());
-        }
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        return winSize == null ? ConnectionProvider.messageAckTimeoutMS() : winSize.rtt.getRto();
+    }
+    /**
+     * @return smoothed round trip time in ms, or -1 if it is not known yet
+     */
+    public int getTrackedSrtt(String remote) {
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        return winSize == null ? -1 : winSize.rtt.getSrtt();
+    }
+    /**
+     * @return moving average of the fraction of lost packets, 0 if it is not known
+     */
+    public float getTrackedLossRate(String remote) {
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        return winSize == null ? 0 : winSize.getLossRate();
+    }
+    /**
+     * @return number of packets that can be sent before the window is full, Integer.MAX_VALUE if the window is not tracked
+     */
+    public int getTrackedFreeWindow(String remote) {
+        final TrackedWinSize winSize = trackedWinSize.get(remote);
+        return winSize == null ? Integer.MAX_VALUE : winSize.getFreeWindow();
     }
 
 
 
     public List<CompletableFuture<SimpleMessagesProtocol.ReceivedMessage>> sendMessageAsync(List<String> destination, ByteString replyTo, Object message) throws NKNClientException.UnknownObjectType {
+        return sendMessageAsync(destination, replyTo, message, false);
+    }
+
+    public List<CompletableFuture<SimpleMessagesProtocol.ReceivedMessage>> sendMessageAsync(List<String> destination, ByteString replyTo, Object message, boolean nonBlocking) throws NKNClientException.UnknownObjectType {
         if (message instanceof String) {
-            return sendMessageAsync(destination, replyTo, MessagesP.PayloadType.TEXT, MessagesP.TextData.newBuilder().setText((String) message).build().toByteString());
+            return sendMessageAsync(destination, replyTo, MessagesP.PayloadType.TEXT, MessagesP.TextData.newBuilder().setText((String) message).build().toByteString(), nonBlocking);
         } else if (message instanceof ByteString) {
-            return sendMessageAsync(destination, replyTo, MessagesP.PayloadType.BINARY, (ByteString) message);
+            return sendMessageAsync(destination, replyTo, MessagesP.PayloadType.BINARY, (ByteString) message, nonBlocking);
         } else if (message instanceof byte[]) {
-            return sendMessageAsync(destination, replyTo, MessagesP.PayloadType.BINARY, ByteString.copyFrom((byte[]) message));
+            return sendMessageAsync(destination, replyTo, MessagesP.PayloadType.BINARY, ByteString.copyFrom((byte[]) message), nonBlocking);
         } else {
             LOG.error("Cannot serialize '{}' to NKN protobuf message", message.getClass());
             throw new NKNClientException.UnknownObjectType("Cannot serialize '" + message.getClass() + "' to NKN message");
@@ -273,6 +325,14 @@ public class ClientMessageWorker {
     }
 
     public List<CompletableFuture<SimpleMessagesProtocol.ReceivedMessage>> sendMessageAsync(List<String> destination, ByteString replyTo, MessagesP.PayloadType type, ByteString message) {
+        return sendMessageAsync(destination, replyTo, type, message, false);
+    }
+
+    /**
+     * @param nonBlocking if true, the returned futures fail with {@link NKNClientException.OutboundQueueFull} instead of waiting for space in the outbound queue,
+     *                    regardless of the configured {@link NKNClient.OutboundBackpressurePolicy}
+     */
+    public List<CompletableFuture<SimpleMessagesProtocol.ReceivedMessage>> sendMessageAsync(List<String> destination, ByteString replyTo, MessagesP.PayloadType type, ByteString message, boolean nonBlocking) {
         final ByteString replyToMessageID = replyTo == null ? ByteString.copyFrom(new byte[0]) : replyTo;
 
         if (ct.forClient.getEncryptionLevel() == NKNClient.EncryptionLevel.CONVERT_MULTICAST_TO_UNICAST_AND_ENCRYPT) {
@@ -294,7 +354,7 @@ public class ClientMessageWorker {
 
                 try {
                     final ByteString encryptedPayload = ClientEnc.encryptMessage(Collections.singletonList(d), payload.build().toByteString(), ct.identity.wallet, NKNClient.EncryptionLevel.ENCRYPT_ONLY_UNICAST);
-                    promises.addAll(sendEncryptedMessage(Collections.singletonList(d), messageID, encryptedPayload, type == MessagesP.PayloadType.SESSION));
+                    promises.addAll(sendEncryptedMessage(Collections.singletonList(d), messageID, encryptedPayload, type == MessagesP.PayloadType.SESSION, nonBlocking));
                 } catch (NKNClientException e) {
                     LOG.warn("Failed to send message", e);
                 }
@@ -317,7 +377,7 @@ public class ClientMessageWorker {
             try {
                 final ByteString encryptedPayload = ClientEnc.encryptMessage(destination, payload.build().toByteString(), ct.identity.wallet, ct.forClient.getEncryptionLevel());
 
-                return sendEncryptedMessage(destination, messageID, encryptedPayload, type == MessagesP.PayloadType.SESSION);
+                return sendEncryptedMessage(destination, messageID, encryptedPayload, type == MessagesP.PayloadType.SESSION, nonBlocking);
             } catch (NKNClientException e) {
                 LOG.warn("Failed to send message", e);
 
@@ -326,7 +386,7 @@ public class ClientMessageWorker {
         }
     }
 
-    private List<CompletableFuture<SimpleMessagesProtocol.ReceivedMessage>> sendEncryptedMessage(List<String> destination, ByteString messageID, ByteString payload, boolean noreplyQ) {
+    private List<CompletableFuture<SimpleMessagesProtocol.ReceivedMessage>> sendEncryptedMessage(List<String> destination, ByteString messageID, ByteString payload, boolean noreplyQ, boolean nonBlocking) {
         if (destination.size() == 0) throw new IllegalArgumentException("At least one address is required for multicast");
 
         final ArrayList<CompletableFuture<SimpleMessagesProtocol.ReceivedMessage>> promises = new ArrayList<>();
@@ -349,13 +409,68 @@ public class ClientMessageWorker {
 
         if (!running) throw new IllegalStateException("Client is not running, cannot send messages.");
 
-        try {
-            outboundQ.put(new MessageJob(destination, messageID, msg.toByteString(), promises, ConnectionProvider.messageAckTimeoutMS(), noreplyQ));
-        } catch (InterruptedException ignored) {}
+        final MessageJob job = new MessageJob(destination, messageID, msg.toByteString(), promises, ConnectionProvider.messageAckTimeoutMS(), noreplyQ);
+        if (nonBlocking) {
+            if (!outboundQ.offer(job)) {
+                failJob(job, new NKNClientException.OutboundQueueFull());
+            }
+            return promises;
+        }
+
+        // Session packets have their own flow control and retransmission, do not fail them here
+        final NKNClient.OutboundBackpressurePolicy policy = noreplyQ ? NKNClient.OutboundBackpressurePolicy.BLOCK : ct.forClient.getOutboundBackpressurePolicy();
+        switch (policy) {
+            case FAIL_FAST:
+                if (!outboundQ.offer(job)) {
+                    failJob(job, new NKNClientException.OutboundQueueFull());
+                }
+                break;
+            case DROP_OLDEST:
+                while (!outboundQ.offer(job)) {
+                    final MessageJob dropped = oldestDroppableJob();
+                    if (dropped == null) { // Only session packets are queued, wait for them instead
+                        try {
+                            outboundQ.put(job);
+                        } catch (InterruptedException ignored) {}
+                        break;
+                    }
+                    if (!outboundQ.remove(dropped)) continue; // Got sent in the meantime
+
+                    LOG.debug("Outbound queue is full, dropping oldest message");
+                    failJob(dropped, new NKNClientException.MessageDropped(dropped.messageID));
+                }
+                break;
+            case BLOCK:
+            default:
+                try {
+                    outboundQ.put(job);
+                } catch (InterruptedException ignored) {}
+        }
 
         return promises;
     }
 
+    /**
+     * @return oldest queued job that is not a session packet, null if there is none
+     */
+    private MessageJob oldestDroppableJob() {
+        for (MessageJob queued : outboundQ) {
+            if (!queued.noreplyQ) return queued;
+        }
+        return null;
+    }
+
+    private void failJob(MessageJob job, Throwable reason) {
+        for (CompletableFuture<SimpleMessagesProtocol.ReceivedMessage> p : job.promise) {
+            events().execute(() -> p.completeExceptionally(reason));
+        }
+    }
+
+    public int getOutboundQueueRemainingCapacity() {
+        final BlockingQueue<MessageJob> q = outboundQ;
+        return q == null ? 0 : q.remainingCapacity();
+    }
+
     private void sendAckMessage(String destination, ByteString replyTo) {
         final MessagesP.Payload payload = MessagesP.Payload.newBuilder()
                 .setType(MessagesP.PayloadType.ACK)
@@ -392,9 +507,12 @@ public class ClientMessageWorker {
         private final ByteString messageID, payload;
         private final List<CompletableFuture<SimpleMessagesProtocol.ReceivedMessage>> promise;
         private final long timeoutIn;
-        private long timeoutAt = -1;
+        private volatile ScheduledFuture<?> timeout = null;
         private final boolean noreplyQ;
 
+        private final AtomicIntegerArray replied;
+        private final AtomicInteger remainingReplies;
+
         MessageJob(List<String> destination, ByteString messageID, ByteString payload, List<CompletableFuture<SimpleMessagesProtocol.ReceivedMessage>> promise, long timeoutIn, boolean noreplyQ) {
             this.destination = destination;
             this.messageID = messageID;
@@ -402,6 +520,19 @@ public class ClientMessageWorker {
             this.promise = promise;
             this.timeoutIn = timeoutIn;
             this.noreplyQ = noreplyQ;
+
+            this.replied = new AtomicIntegerArray(destination.size());
+            this.remainingReplies = new AtomicInteger(destination.size());
+        }
+
+        boolean onReplied(int destinationI) {
+            if (!replied.compareAndSet(destinationI, 0, 1)) return false;
+            remainingReplies.decrementAndGet();
+            return true;
+        }
+
+        boolean isReplied() {
+            return remainingReplies.get() <= 0;
         }
 
     }
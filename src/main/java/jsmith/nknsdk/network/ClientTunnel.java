@@ -199,6 +199,7 @@ public class ClientTunnel {
                         return true;
                     });
                     success[0] = true;
+                    handler.onTunnelReconnected(cm);
                 } catch (Exception t) {
                     if (t instanceof NKNClientException) {
                         LOG.error("Failed to reconnect to ws", t);
@@ -327,6 +328,7 @@ public class ClientTunnel {
                     try {
                         reconnect();
                         success[0] = true;
+                        handler.onTunnelReconnected(cm);
                     } catch (NKNClientException e) {
                         LOG.error("Failed to reconnect to ws", e);
                         success[0] = false;
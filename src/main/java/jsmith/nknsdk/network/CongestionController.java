@@ -0,0 +1,27 @@
+package jsmith.nknsdk.network;
+
+/**
+ * Window control strategy of a single remote on a single connection (multiclient path).
+ * Window is counted in packets. Implementations are called concurrently and must be thread safe,
+ * {@link #getWindow()} is called on every send and should be cheap.
+ */
+public interface CongestionController {
+
+    /**
+     * @return how many packets can be in flight at once
+     */
+    int getWindow();
+
+    /**
+     * @param rttMs measured round trip time of the acked packet, or -1 if the sample is not reliable (retransmitted packet)
+     */
+    void onAck(int rttMs);
+
+    /**
+     * Called for every packet that was not acked in time. A burst loss calls this once per lost packet,
+     * implementations should reduce the window only once per loss event (at most once per RTT)
+     * @param srttMs smoothed round trip time of the path, -1 if not measured yet
+     */
+    void onLoss(int srttMs);
+
+}
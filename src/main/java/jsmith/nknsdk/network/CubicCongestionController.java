@@ -0,0 +1,70 @@
+package jsmith.nknsdk.network;
+
+/**
+ * CUBIC-like window growth (RFC 8312). Window grows as a cubic function of time since the last loss,
+ * so it quickly returns to the window where the loss happened and then probes past it, independently of RTT.
+ * Window doubles every RTT (slow start) until the first loss.
+ */
+public class CubicCongestionController implements CongestionController {
+
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private final Object lock = new Object();
+    private volatile int window;
+    private final LossEpoch lossEpoch = new LossEpoch();
+
+    private double cwnd;
+    private double wMax = -1;
+    private double k = 0;
+    private long epochStart = -1;
+
+    public CubicCongestionController() {
+        this(ClientMessageWorker.DEFAULT_INITIAL_CONNECTION_WINSIZE);
+    }
+
+    public CubicCongestionController(int initialWindow) {
+        this.cwnd = AimdCongestionController.clamp(initialWindow);
+        this.window = (int) cwnd;
+    }
+
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public void onAck(int rttMs) {
+        synchronized (lock) {
+            if (wMax < 0) {
+                cwnd += 1; // Slow start
+            } else {
+                final long now = System.currentTimeMillis();
+                if (epochStart == -1) epochStart = now;
+
+                final double t = (now - epochStart) / 1000.0;
+                final double target = C * Math.pow(t - k, 3) + wMax;
+                if (target > cwnd) {
+                    cwnd += (target - cwnd) / cwnd;
+                } else {
+                    cwnd += 0.01 / cwnd;
+                }
+            }
+            cwnd = Math.min(ClientMessageWorker.MAX_CONNECTION_WINSIZE, cwnd);
+            window = AimdCongestionController.clamp((int) cwnd);
+        }
+    }
+
+    @Override
+    public void onLoss(int srttMs) {
+        synchronized (lock) {
+            if (!lossEpoch.onLoss(System.currentTimeMillis(), srttMs)) return;
+            wMax = cwnd;
+            cwnd = Math.max(ClientMessageWorker.MIN_CONNECTION_WINSIZE, cwnd * BETA);
+            k = Math.cbrt(wMax * (1 - BETA) / C);
+            epochStart = -1;
+            window = AimdCongestionController.clamp((int) cwnd);
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package jsmith.nknsdk.network;
+
+/**
+ * Delay based window control in the style of TCP Vegas.
+ * Compares expected and actual throughput using the lowest seen RTT as the base
+ * and keeps only a few packets queued along the path, instead of growing until loss.
+ */
+public class DelayBasedCongestionController implements CongestionController {
+
+    private static final int ALPHA = 2, BETA = 4, GAMMA = 1;
+
+    private final Object lock = new Object();
+    private volatile int window;
+    private final LossEpoch lossEpoch = new LossEpoch();
+
+    private int baseRtt = Integer.MAX_VALUE;
+    private int minRttInRound = Integer.MAX_VALUE;
+    private long roundStart = -1;
+    private boolean slowStart = true;
+
+    public DelayBasedCongestionController() {
+        this(ClientMessageWorker.DEFAULT_INITIAL_CONNECTION_WINSIZE);
+    }
+
+    public DelayBasedCongestionController(int initialWindow) {
+        this.window = AimdCongestionController.clamp(initialWindow);
+    }
+
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    @Override
+    public void onAck(int rttMs) {
+        synchronized (lock) {
+            if (rttMs < 0) return;
+            baseRtt = Math.min(baseRtt, Math.max(1, rttMs));
+            minRttInRound = Math.min(minRttInRound, Math.max(1, rttMs));
+
+            final long now = System.currentTimeMillis();
+            if (roundStart == -1) roundStart = now;
+            if (now - roundStart < minRttInRound) {
+                if (slowStart) window = AimdCongestionController.clamp(window + 1);
+                return;
+            }
+
+            // Once per round trip: estimate how many packets are queued on the path
+            final double queued = window * (1 - (double) baseRtt / minRttInRound);
+            if (slowStart) {
+                if (queued > GAMMA) {
+                    slowStart = false;
+                } else {
+                    window = AimdCongestionController.clamp(window + 1);
+                }
+            } else if (queued < ALPHA) {
+                window = AimdCongestionController.clamp(window + 1);
+            } else if (queued > BETA) {
+                window = AimdCongestionController.clamp(window - 1);
+            }
+
+            roundStart = now;
+            minRttInRound = Integer.MAX_VALUE;
+        }
+    }
+
+    @Override
+    public void onLoss(int srttMs) {
+        synchronized (lock) {
+            if (!lossEpoch.onLoss(System.currentTimeMillis(), srttMs)) return;
+            slowStart = false;
+            window = AimdCongestionController.clamp(window * 3 / 4);
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package jsmith.nknsdk.network;
+
+/**
+ * Groups packet losses into loss events, so that a window is reduced only once for a burst of losses (RFC 5681, RFC 8312).
+ * A loss starts a new event only when at least one RTT passed since the previous reduction. Not thread safe, callers synchronize.
+ */
+class LossEpoch {
+
+    private long lastReductionAt = -1;
+
+    /**
+     * @param srttMs smoothed round trip time of the path, -1 if not known yet
+     * @return true if the loss starts a new loss event and the window should be reduced
+     */
+    boolean onLoss(long now, int srttMs) {
+        final long rtt = srttMs < 0 ? ClientMessageWorker.INITIAL_RTO : srttMs;
+        if (lastReductionAt != -1 && now - lastReductionAt < rtt) return false;
+        lastReductionAt = now;
+        return true;
+    }
+
+}
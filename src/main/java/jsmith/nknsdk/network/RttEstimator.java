@@ -0,0 +1,50 @@
+package jsmith.nknsdk.network;
+
+/**
+ * Retransmission timeout estimator as described by RFC 6298.
+ * Samples of retransmitted packets must not be fed in (Karn's algorithm), timeouts back the RTO off exponentially.
+ */
+class RttEstimator {
+
+    private static final int CLOCK_GRANULARITY_MS = 10;
+
+    private double srtt = -1, rttvar = 0;
+    private volatile int rto = ClientMessageWorker.INITIAL_RTO;
+    private long lastBackoffAt = 0;
+
+    synchronized void onSample(int rttMs) {
+        if (rttMs < 0) return;
+        if (srtt < 0) {
+            srtt = rttMs;
+            rttvar = rttMs / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMs);
+            srtt = 0.875 * srtt + 0.125 * rttMs;
+        }
+        rto = clamp((int) Math.ceil(srtt + Math.max(CLOCK_GRANULARITY_MS, 4 * rttvar)));
+    }
+
+    synchronized void onTimeout() {
+        // Packets are timed individually, back off only once per RTO even if a whole window of them expires
+        final long now = System.currentTimeMillis();
+        if (now - lastBackoffAt < rto) return;
+        lastBackoffAt = now;
+        rto = clamp(rto * 2);
+    }
+
+    int getRto() {
+        return rto;
+    }
+
+    /**
+     * @return smoothed rtt in ms, or -1 if there was no sample yet
+     */
+    synchronized int getSrtt() {
+        return (int) Math.round(srtt);
+    }
+
+    private static int clamp(int rto) {
+        return Math.max(ClientMessageWorker.MIN_RTO, Math.min(ClientMessageWorker.MAX_RTO, rto));
+    }
+
+}
@@ -0,0 +1,114 @@
+package jsmith.nknsdk.network;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Congestion window of a single remote on a single connection.
+ * Window checks and updates are lock free, the lock is only taken to park and wake senders waiting for the window to open.
+ */
+class TrackedWinSize {
+
+    private final AtomicInteger used = new AtomicInteger(0);
+    private final CongestionController congestion;
+    final RttEstimator rtt = new RttEstimator();
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition windowOpened = waitLock.newCondition();
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    private static final float LOSS_RATE_GAIN = 1f / 16;
+    private final AtomicInteger lossRateBits = new AtomicInteger(Float.floatToIntBits(0f));
+
+    TrackedWinSize(CongestionController congestion) {
+        this.congestion = congestion;
+    }
+
+    boolean isAvailable() {
+        return used.get() < congestion.getWindow();
+    }
+
+    int getFreeWindow() {
+        return Math.max(0, congestion.getWindow() - used.get());
+    }
+
+    /**
+     * @return moving average of the fraction of packets lost, 0 to 1
+     */
+    float getLossRate() {
+        return Float.intBitsToFloat(lossRateBits.get());
+    }
+
+    private void sampleLoss(boolean lost) {
+        lossRateBits.updateAndGet(bits -> Float.floatToIntBits(Float.intBitsToFloat(bits) * (1 - LOSS_RATE_GAIN) + (lost ? LOSS_RATE_GAIN : 0)));
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            final int u = used.get();
+            if (u >= congestion.getWindow()) return false;
+            if (used.compareAndSet(u, u + 1)) return true;
+        }
+    }
+
+    void acquire() {
+        if (tryAcquire()) return;
+
+        waiting.incrementAndGet();
+        waitLock.lock();
+        try {
+            while (!tryAcquire()) {
+                windowOpened.awaitUninterruptibly();
+            }
+        } finally {
+            waitLock.unlock();
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param rttMs rtt sample of the acked packet, -1 if not valid
+     */
+    void onAck(int rttMs) {
+        if (rttMs >= 0) rtt.onSample(rttMs);
+        used.updateAndGet(u -> u > 0 ? u - 1 : 0);
+        sampleLoss(false);
+        congestion.onAck(rttMs);
+        signalWaiting();
+    }
+
+    void onTimeout() {
+        rtt.onTimeout();
+        used.updateAndGet(u -> u > 0 ? u - 1 : 0);
+        sampleLoss(true);
+        congestion.onLoss(rtt.getSrtt());
+        signalWaiting();
+    }
+
+    /**
+     * Packet was lost for reasons unrelated to congestion, e.g. the connection broke
+     */
+    void release() {
+        used.updateAndGet(u -> u > 0 ? u - 1 : 0);
+        signalWaiting();
+    }
+
+    void onFastRetransmit() {
+        used.updateAndGet(u -> u > 0 ? u - 1 : 0);
+        sampleLoss(true);
+        congestion.onLoss(rtt.getSrtt());
+        signalWaiting();
+    }
+
+    private void signalWaiting() {
+        if (waiting.get() == 0) return;
+        waitLock.lock();
+        try {
+            windowOpened.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+}
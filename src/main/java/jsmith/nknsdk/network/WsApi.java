@@ -2,6 +2,7 @@ package jsmith.nknsdk.network;
 
 import com.google.protobuf.ByteString;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -10,6 +11,8 @@ import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -98,6 +101,15 @@ public class WsApi extends WebSocketClient {
         send(ByteBuffer.wrap(bin.toByteArray()));
     }
 
+    public void sendPackets(List<ByteString> bins) {
+        final ArrayList<Framedata> frames = new ArrayList<>(bins.size());
+        for (ByteString bin : bins) {
+            // Array backed like in sendPacket, websocket trace logging accesses the payload array
+            frames.addAll(getDraft().createFrames(ByteBuffer.wrap(bin.toByteArray()), true));
+        }
+        sendFrame(frames);
+    }
+
     public void sendPacket(JSONObject json) {
         final String str = json.toString();
         send(str);
@@ -0,0 +1,52 @@
+package jsmith.nknsdk.network.session;
+
+import jsmith.nknsdk.network.proto.MessagesP;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of received but not yet acknowledged sequence ids, kept as disjoint ranges merged on insertion.
+ * Acks are not bound to the path the chunk arrived on, any outgoing packet may carry them.
+ */
+class AckTracker {
+
+    public static final int MAX_RANGES_PER_PACKET = 32;
+
+    // Range start -> range end (exclusive)
+    private final TreeMap<Integer, Integer> ranges = new TreeMap<>();
+
+    synchronized void add(int sequenceId) {
+        int start = sequenceId, end = sequenceId + 1;
+
+        final Map.Entry<Integer, Integer> lower = ranges.floorEntry(sequenceId);
+        if (lower != null) {
+            if (lower.getValue() > sequenceId) return; // Already pending
+            if (lower.getValue() == sequenceId) start = lower.getKey();
+        }
+        final Integer upperEnd = ranges.remove(end);
+        if (upperEnd != null) end = upperEnd;
+
+        ranges.put(start, end);
+    }
+
+    synchronized boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * Moves up to maxRanges lowest ranges into the packet
+     * @return true if any ack was added
+     */
+    synchronized boolean drainTo(MessagesP.SessionData.Builder packet, int maxRanges) {
+        boolean added = false;
+        for (int i = 0; i < maxRanges && !ranges.isEmpty(); i++) {
+            final Map.Entry<Integer, Integer> range = ranges.pollFirstEntry();
+            packet.addAckStartSeq(range.getKey());
+            packet.addAckSeqCount(range.getValue() - range.getKey());
+            added = true;
+        }
+        return added;
+    }
+
+}
@@ -0,0 +1,63 @@
+package jsmith.nknsdk.network.session;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A lost chunk larger than the size known to get through is resent in smaller pieces, which share the sequence id of the chunk.
+ * Fragment packets carry the size of the whole chunk in the mtu field and the offset of the piece in the window size field,
+ * both otherwise only used by handshakes. Reassembles received fragments, used under the session lock.
+ */
+class ChunkFragments {
+
+    static final int MAX_PENDING = 64;
+
+    private final TreeMap<Integer, Assembly> pending = new TreeMap<>();
+
+    /**
+     * @param pieceSize largest size of a piece
+     * @return consecutive pieces of the data
+     */
+    static List<ByteString> split(ByteString data, int pieceSize) {
+        if (pieceSize <= 0) throw new IllegalArgumentException("Piece size must be positive");
+        final List<ByteString> pieces = new ArrayList<>(data.size() / pieceSize + 1);
+        for (int offset = 0; offset < data.size(); offset += pieceSize) {
+            pieces.add(data.substring(offset, Math.min(data.size(), offset + pieceSize)));
+        }
+        return pieces;
+    }
+
+    /**
+     * @return the whole chunk once all of its pieces arrived, null otherwise
+     */
+    ByteString onFragment(int sequenceId, int chunkSize, int offset, ByteString piece) {
+        if (chunkSize <= 0 || chunkSize > SessionHandler.MAX_MTU || offset < 0 || piece.isEmpty() || piece.size() > chunkSize - offset) return null;
+
+        Assembly a = pending.get(sequenceId);
+        if (a == null || a.data.length != chunkSize) {
+            if (a == null && pending.size() >= MAX_PENDING) pending.pollFirstEntry(); // Oldest one is the least likely to complete
+            a = new Assembly(chunkSize);
+            pending.put(sequenceId, a);
+        }
+        piece.copyTo(a.data, offset);
+        a.received.set(offset, offset + piece.size());
+        if (a.received.cardinality() < chunkSize) return null;
+
+        pending.remove(sequenceId);
+        return ByteString.copyFrom(a.data);
+    }
+
+    private static class Assembly {
+        final byte[] data;
+        final BitSet received;
+        Assembly(int size) {
+            this.data = new byte[size];
+            this.received = new BitSet(size);
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package jsmith.nknsdk.network.session;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Holds chunks received ahead of the next expected sequence id until the gap is filled.
+ * Chunks are stored in a circular array indexed by sequence id, all operations are O(1) amortized.
+ * Not thread safe, callers synchronize.
+ */
+class ChunkReorderBuffer {
+
+    private ByteString[] slots;
+    private int mask;
+    private int nextSeq;
+    private int bytes = 0;
+
+    ChunkReorderBuffer(int nextSeq, int expectedChunks) {
+        int capacity = 16;
+        while (capacity < expectedChunks) capacity <<= 1;
+        this.slots = new ByteString[capacity];
+        this.mask = capacity - 1;
+        this.nextSeq = nextSeq;
+    }
+
+    /**
+     * @return true if the chunk was already delivered or is already buffered
+     */
+    boolean contains(int sequenceId) {
+        if (sequenceId < nextSeq) return true;
+        return sequenceId - nextSeq < slots.length && slots[sequenceId & mask] != null;
+    }
+
+    void put(int sequenceId, ByteString data) {
+        if (contains(sequenceId)) return;
+        if (sequenceId - nextSeq >= slots.length) grow(sequenceId - nextSeq + 1);
+
+        slots[sequenceId & mask] = data;
+        bytes += data.size();
+    }
+
+    /**
+     * @return next in-order chunk, or null if it did not arrive yet
+     */
+    ByteString pollNext() {
+        final int i = nextSeq & mask;
+        final ByteString data = slots[i];
+        if (data == null) return null;
+
+        slots[i] = null;
+        bytes -= data.size();
+        nextSeq ++;
+        return data;
+    }
+
+    /**
+     * @return sum of sizes of all buffered chunks
+     */
+    int getBytes() {
+        return bytes;
+    }
+
+    int getNextSequenceId() {
+        return nextSeq;
+    }
+
+    private void grow(int required) {
+        int capacity = slots.length;
+        while (capacity < required) capacity <<= 1;
+
+        final ByteString[] grown = new ByteString[capacity];
+        final int newMask = capacity - 1;
+        for (int seq = nextSeq; seq - nextSeq < slots.length; seq ++) {
+            grown[seq & newMask] = slots[seq & mask];
+        }
+        slots = grown;
+        mask = newMask;
+    }
+
+}
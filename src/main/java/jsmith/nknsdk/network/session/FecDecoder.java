@@ -0,0 +1,109 @@
+package jsmith.nknsdk.network.session;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rebuilds a lost data chunk once a parity covering it and all other chunks covered by that parity arrived.
+ * A parity covers every stride-th chunk from its first sequence id, see {@link FecEncoder}.
+ * Keeps references to recently received chunks, since they may be needed after being read from the stream.
+ * Not thread safe, used under the session lock.
+ */
+class FecDecoder {
+
+    static final int MAX_GROUP_SIZE = 64;
+    private static final int HISTORY = 4 * MAX_GROUP_SIZE;
+
+    private final TreeMap<Integer, ByteString> received = new TreeMap<>();
+    private final TreeMap<Integer, Parity> parities = new TreeMap<>();
+    private int historyFloor = 1; // History is complete from this sequence id on
+
+    interface Recovered {
+        void onRecovered(int sequenceId, ByteString data);
+    }
+
+    void onChunk(int sequenceId, ByteString data, Recovered recovered) {
+        if (sequenceId < historyFloor || received.containsKey(sequenceId)) return;
+
+        received.put(sequenceId, data);
+        while (received.size() > HISTORY) {
+            historyFloor = received.pollFirstEntry().getKey() + 1;
+        }
+        parities.headMap(historyFloor).clear();
+
+        final List<Map.Entry<Integer, Parity>> covering = new ArrayList<>();
+        for (Map.Entry<Integer, Parity> e : parities.subMap(sequenceId - MAX_GROUP_SIZE, false, sequenceId, true).entrySet()) {
+            if (e.getValue().covers(e.getKey(), sequenceId)) covering.add(e);
+        }
+        for (Map.Entry<Integer, Parity> e : covering) {
+            tryRecover(e.getKey(), e.getValue(), recovered);
+        }
+    }
+
+    void onParity(ByteString data, Recovered recovered) {
+        final Parity p = new Parity();
+        final int firstSeq;
+        try {
+            final CodedInputStream in = data.newCodedInput();
+            firstSeq = in.readUInt32();
+            p.count = in.readUInt32();
+            p.stride = in.readUInt32();
+            p.lengthXor = in.readUInt32();
+            p.payload = data.substring(in.getTotalBytesRead());
+        } catch (IOException e) {
+            return;
+        }
+        if (firstSeq < historyFloor || p.count < 1 || p.stride < 1 || (long) (p.count - 1) * p.stride >= MAX_GROUP_SIZE) return;
+
+        parities.put(firstSeq, p);
+        tryRecover(firstSeq, p, recovered);
+    }
+
+    private void tryRecover(int firstSeq, Parity p, Recovered recovered) {
+        if (parities.get(firstSeq) != p) return; // Already used up while recovering another chunk
+
+        int missing = -1;
+        for (int seq = firstSeq, n = 0; n < p.count; seq += p.stride, n++) {
+            if (!received.containsKey(seq)) {
+                if (missing != -1) return; // More than one lost, can't be rebuilt (yet)
+                missing = seq;
+            }
+        }
+        parities.remove(firstSeq);
+        if (missing == -1) return;
+
+        final byte[] rebuilt = p.payload.toByteArray();
+        int length = p.lengthXor;
+        for (int seq = firstSeq, n = 0; n < p.count; seq += p.stride, n++) {
+            if (seq == missing) continue;
+            final ByteString chunk = received.get(seq);
+            length ^= chunk.size();
+            for (int i = 0; i < chunk.size() && i < rebuilt.length; i++) {
+                rebuilt[i] ^= chunk.byteAt(i);
+            }
+        }
+        if (length < 0 || length > rebuilt.length) return;
+
+        final ByteString data = ByteString.copyFrom(rebuilt, 0, length);
+        recovered.onRecovered(missing, data);
+    }
+
+    private static class Parity {
+        int count;
+        int stride;
+        int lengthXor;
+        ByteString payload;
+
+        boolean covers(int firstSeq, int sequenceId) {
+            final int offset = sequenceId - firstSeq;
+            return offset >= 0 && offset % stride == 0 && offset / stride < count;
+        }
+    }
+
+}
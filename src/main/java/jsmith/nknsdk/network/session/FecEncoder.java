@@ -0,0 +1,118 @@
+package jsmith.nknsdk.network.session;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds XOR parity chunks over each group of consecutive data chunks. With M parities per group, parity j covers
+ * the chunks whose index in the group is j modulo M, so any burst of up to M consecutive lost chunks can be rebuilt
+ * by the receiver from the parities and the other chunks, see {@link FecDecoder}.
+ * Paths the chunks of a group went over are counted, so that the parities can avoid the path most of the group used.
+ * Only used from the session handler thread.
+ */
+class FecEncoder {
+
+    private byte[][] parity = new byte[0][];
+    private int[] parityLength = new int[0], lengthXor = new int[0], laneCount = new int[0];
+    private int firstSeq = -1, count = 0, lanes = 1;
+    private final int[] pathCounts = new int[SessionHandler.MAX_MULTICLIENTS];
+    private int lastGroupMainPath = -1;
+
+    /**
+     * @param chunk data chunk sent for the first time
+     * @param pathIndex index of the multiclient the chunk was sent over
+     * @param groupSize number of data chunks in one group
+     * @param parityCount number of parity chunks per group, applied from the next group on
+     * @return parity payloads if the group is complete, null otherwise
+     */
+    List<ByteString> onChunkSent(Session.DataChunk chunk, int pathIndex, int groupSize, int parityCount) {
+        if (count > 0 && chunk.sequenceId != firstSeq + count) {
+            count = 0; // Not consecutive, the group can't be described, start over
+        }
+        if (count == 0) {
+            firstSeq = chunk.sequenceId;
+            lanes = Math.max(1, Math.min(parityCount, groupSize));
+            if (parity.length < lanes) {
+                parity = Arrays.copyOf(parity, lanes);
+                for (int i = 0; i < lanes; i++) {
+                    if (parity[i] == null) parity[i] = new byte[0];
+                }
+                parityLength = new int[lanes];
+                lengthXor = new int[lanes];
+                laneCount = new int[lanes];
+            }
+            Arrays.fill(parityLength, 0);
+            Arrays.fill(lengthXor, 0);
+            Arrays.fill(laneCount, 0);
+            Arrays.fill(pathCounts, 0);
+        }
+        if (pathIndex >= 0 && pathIndex < pathCounts.length) pathCounts[pathIndex] ++;
+
+        final int lane = count % lanes;
+        final int length = chunk.data.size();
+        if (length > parity[lane].length) {
+            final byte[] grown = new byte[length];
+            System.arraycopy(parity[lane], 0, grown, 0, parityLength[lane]);
+            parity[lane] = grown;
+        }
+        if (length > parityLength[lane]) {
+            Arrays.fill(parity[lane], parityLength[lane], length, (byte) 0);
+            parityLength[lane] = length;
+        }
+        for (int i = 0; i < length; i++) {
+            parity[lane][i] ^= chunk.data.byteAt(i);
+        }
+        lengthXor[lane] ^= length;
+        laneCount[lane] ++;
+        count ++;
+
+        return count >= groupSize ? finish() : null;
+    }
+
+    /**
+     * Ends the current group early, used when there is no more data to send for now
+     * @return parity payloads, null if the group is too small to be worth protecting
+     */
+    List<ByteString> flush() {
+        return count >= 2 ? finish() : null;
+    }
+
+    /**
+     * @return index of the path which carried most chunks of the last finished group, -1 if no group was finished yet
+     */
+    int getLastGroupMainPath() {
+        return lastGroupMainPath;
+    }
+
+    private List<ByteString> finish() {
+        lastGroupMainPath = 0;
+        for (int i = 1; i < pathCounts.length; i++) {
+            if (pathCounts[i] > pathCounts[lastGroupMainPath]) lastGroupMainPath = i;
+        }
+        final int stride = Math.min(lanes, count);
+        final List<ByteString> parities = new ArrayList<>(stride);
+        try {
+            for (int lane = 0; lane < stride; lane++) {
+                final ByteString.Output out = ByteString.newOutput(parityLength[lane] + 20);
+                final CodedOutputStream cos = CodedOutputStream.newInstance(out);
+                cos.writeUInt32NoTag(firstSeq + lane);
+                cos.writeUInt32NoTag(laneCount[lane]);
+                cos.writeUInt32NoTag(stride);
+                cos.writeUInt32NoTag(lengthXor[lane]);
+                cos.writeRawBytes(parity[lane], 0, parityLength[lane]);
+                cos.flush();
+                parities.add(out.toByteString());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode parity chunk", e);
+        }
+        count = 0;
+        return parities;
+    }
+
+}
@@ -0,0 +1,26 @@
+package jsmith.nknsdk.network.session;
+
+import java.util.List;
+
+/**
+ * Fills the fastest path first, others are only used once its window is full.
+ * Rtt is inflated by the loss rate, paths without a measurement yet are tried first to get one.
+ */
+public class LowestRttPathScheduler implements PathScheduler {
+
+    @Override
+    public int choose(List<Path> paths) {
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < paths.size(); i++) {
+            final Path p = paths.get(i);
+            final double cost = p.srtt < 0 ? -1 : p.srtt / Math.max(0.05, 1 - p.lossRate);
+            if (cost < bestCost || (cost == bestCost && p.freeWindow > paths.get(best).freeWindow)) {
+                best = i;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+}
@@ -0,0 +1,62 @@
+package jsmith.nknsdk.network.session;
+
+/**
+ * Picks the size of new chunks between the initial and the negotiated MTU. The size grows after a run of acknowledged
+ * full chunks and falls back to the largest confirmed size when a larger chunk gets lost, so it narrows down to the
+ * largest size that gets through reliably. Bigger chunks mean fewer signatures and encryptions per byte.
+ */
+class MtuProber {
+
+    public static final int ACKS_TO_GROW = 32;
+    public static final int MIN_STEP = 512;
+    public static final int ACKS_TO_REPROBE = 1024;
+
+    private final int max;
+    private volatile int current;
+    private int confirmed; // Largest chunk size known to get through
+    private int ceiling = 0; // Smallest chunk size known to get lost, 0 if none
+    private int acks = 0;
+
+    MtuProber(int initial, int max) {
+        this.max = max;
+        this.current = Math.min(initial, max);
+        this.confirmed = current;
+    }
+
+    /**
+     * @return size of new chunks
+     */
+    int getMtu() {
+        return current;
+    }
+
+    /**
+     * @return largest chunk size known to get through
+     */
+    synchronized int getConfirmed() {
+        return confirmed;
+    }
+
+    synchronized void onAcked(int chunkSize, boolean retransmitted) {
+        confirmed = Math.max(confirmed, chunkSize);
+        if (retransmitted || chunkSize < current) return; // Tells nothing about how well the current size does
+
+        acks ++;
+        if (ceiling != 0 && acks >= ACKS_TO_REPROBE) ceiling = 0; // Loss may have been a coincidence, try again
+        if (acks < ACKS_TO_GROW || current >= max) return;
+
+        final int next = Math.min(max, ceiling == 0 ? current * 2 : (current + ceiling) / 2);
+        if (next - current < MIN_STEP) return; // Settled
+        current = next;
+        acks = 0;
+    }
+
+    synchronized void onLost(int chunkSize) {
+        if (chunkSize <= confirmed) return; // Same size got through before, ordinary congestion
+
+        ceiling = ceiling == 0 ? chunkSize : Math.min(ceiling, chunkSize);
+        current = confirmed;
+        acks = 0;
+    }
+
+}
@@ -0,0 +1,52 @@
+package jsmith.nknsdk.network.session;
+
+import java.util.List;
+
+/**
+ * Chooses which multiclient path the next session packet is sent over.
+ * Implementations are shared by all sessions of a client and are only called from the session handler thread.
+ */
+public interface PathScheduler {
+
+    /**
+     * @param paths paths that currently have free window space, never empty
+     * @return index of the chosen path within the list
+     */
+    int choose(List<Path> paths);
+
+    class Path {
+        int index;
+        int srtt;
+        float lossRate;
+        int freeWindow;
+
+        /**
+         * @return index of the multiclient
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return smoothed round trip time in ms, -1 if not measured yet
+         */
+        public int getSrtt() {
+            return srtt;
+        }
+
+        /**
+         * @return moving average of the fraction of lost packets
+         */
+        public float getLossRate() {
+            return lossRate;
+        }
+
+        /**
+         * @return packets that can be sent before the congestion window is full
+         */
+        public int getFreeWindow() {
+            return freeWindow;
+        }
+    }
+
+}
@@ -0,0 +1,16 @@
+package jsmith.nknsdk.network.session;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks any of the available paths with equal probability
+ */
+public class RandomPathScheduler implements PathScheduler {
+
+    @Override
+    public int choose(List<Path> paths) {
+        return ThreadLocalRandom.current().nextInt(paths.size());
+    }
+
+}
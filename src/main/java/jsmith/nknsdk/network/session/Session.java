@@ -2,6 +2,7 @@ package jsmith.nknsdk.network.session;
 
 import com.google.protobuf.ByteString;
 import jsmith.nknsdk.network.ClientMessageWorker;
+import jsmith.nknsdk.network.CongestionController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,8 +10,11 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  *
@@ -19,6 +23,8 @@ public class Session {
 
     private static final Logger LOG = LoggerFactory.getLogger(Session.class);
 
+    public static final int FAST_RETRANSMIT_THRESHOLD = 3;
+
     // TODO Not all status reads are properly synchronized. It should be fine though
     boolean isEstablished;
     boolean isBroken;
@@ -31,47 +37,69 @@ public class Session {
     final AtomicLong remoteBytesRead = new AtomicLong(0);
     long lastSentBytesReadTime = 0;
 
+    boolean isDialer = false;
+    public boolean isDialer() {
+        return isDialer;
+    }
+
     public final String remoteIdentifier;
     final ByteString sessionId;
+    final String winSizeKey; // Congestion state is tracked per session and multiclient path
 
     List<String> prefixes;
     int ownMulticlients;
     int mtu, winSize;
+    volatile MtuProber mtuProber;
+    final Supplier<CongestionController> congestionControl;
 
     final Object lock = new Object();
 
-    private final SessionInputStream is;
-    private final SessionOutputStream os;
+    private final SessionHandler handler;
+    final SessionInputStream is;
+    final SessionOutputStream os;
 
-    Session(SessionHandler handler, List<String> prefixes, int ownMulticlients, String remoteIdentifier, ByteString sessionId, int mtu, int winSize) {
+    Session(SessionHandler handler, List<String> prefixes, int ownMulticlients, String remoteIdentifier, ByteString sessionId, int mtu, int winSize, Supplier<CongestionController> congestionControl) {
         this.prefixes = prefixes;
         this.ownMulticlients = ownMulticlients;
         this.remoteIdentifier = remoteIdentifier;
         this.sessionId = sessionId;
+        this.winSizeKey = remoteIdentifier + "#" + Base64.getEncoder().encodeToString(sessionId.toByteArray());
 
         this.mtu = mtu;
+        this.mtuProber = new MtuProber(SessionHandler.DEFAULT_MTU, mtu);
         this.winSize = winSize;
+        this.congestionControl = congestionControl;
+        this.handler = handler;
 
         sentBytesIntegral.put(0, 0L);
 
         os = new SessionOutputStream(this, handler);
-        is = new SessionInputStream(this);
+        is = new SessionInputStream(this, handler);
     }
 
     void establishSession(List<String> prefixes, int mtu, int ownMulticlients, int winSize) {
         synchronized (this) {
             this.mtu = mtu;
+            this.mtuProber = new MtuProber(SessionHandler.DEFAULT_MTU, mtu);
             this.prefixes = prefixes;
             this.ownMulticlients = ownMulticlients;
             this.winSize = winSize;
+            this.compressed = compressionPreferred && remoteOptions.supports(SessionOptions.FEATURE_DEFLATE);
 
-            sendQ = new ArrayBlockingQueue<>(winSize / mtu + 16);
-            resendQ = new PriorityBlockingQueue<>(winSize / mtu + 32, Comparator.comparingInt(j -> j.sequenceId));
+            sendQ = new ArrayBlockingQueue<>(getMaxChunksInWindow());
 
             lastReceivedPacket = System.currentTimeMillis();
 
             isEstablished = true;
         }
+        signalFlushProgress();
+    }
+
+    /**
+     * @return how many chunks can be outstanding at once, assuming chunks of at least the initial MTU
+     */
+    int getMaxChunksInWindow() {
+        return winSize / Math.min(mtu, SessionHandler.DEFAULT_MTU) + 16;
     }
 
     Runnable onSessionEstablishedCb = null;
@@ -103,93 +131,245 @@ public class Session {
         return os;
     }
 
+    private volatile SessionChannel channel = null;
+    /**
+     * @return non-blocking channel over the session streams
+     */
+    public SessionChannel getChannel() {
+        if (!isEstablished || isClosed) throw new IllegalStateException("The session is not active, cannot return channel");
+        synchronized (this) {
+            if (channel == null) channel = new SessionChannel(this);
+            return channel;
+        }
+    }
+    void notifyChannel() {
+        final SessionChannel c = channel;
+        if (c != null) c.onReadinessChanged();
+    }
+
 
     // Outbound
     int latestConfirmedSeqId = 0;
     int latestSentSeqId = 0;
     BlockingQueue<DataChunk> sendQ;
-    final HashMap<DataChunk, SentLog> sentQ = new HashMap<>();
-    final HashMap<Integer, Long> sentBytesIntegral = new HashMap<>();
-    BlockingQueue<DataChunk> resendQ;
+    final AtomicLong sendQBytes = new AtomicLong(0);
+    // Indexed by sequence id, acking a range only touches the entries within it
+    final TreeMap<Integer, SentLog> sentQ = new TreeMap<>();
+    final ConcurrentSkipListMap<Integer, Long> sentBytesIntegral = new ConcurrentSkipListMap<>();
+    final ConcurrentSkipListMap<Integer, DataChunk> resendQ = new ConcurrentSkipListMap<>();
+
+    // Handler thread only, reused to avoid allocating path list per packet
+    final ArrayList<PathScheduler.Path> paths = new ArrayList<>();
+    final ArrayList<PathScheduler.Path> availablePaths = new ArrayList<>();
+    final ArrayList<PathScheduler.Path> pathCandidates = new ArrayList<>();
+    final ArrayList<PathScheduler.Path> redundantPaths = new ArrayList<>();
+    volatile int redundancy = 1;
+
+    /**
+     * Sends every data chunk over up to the given number of distinct multiclient paths at once, trading bandwidth for latency.
+     * The first copy to arrive is used, the rest is dropped by the receiver.
+     * @param copies 1 (default) disables redundant sending
+     */
+    public void setRedundancy(int copies) {
+        if (copies < 1) throw new IllegalArgumentException("Redundancy must be at least 1");
+        this.redundancy = copies;
+    }
+    public int getRedundancy() {
+        return redundancy;
+    }
+
+    SessionOptions remoteOptions = new SessionOptions();
+    ByteString earlyData = null;
+    long earlyDataSentAt = 0;
+    boolean resumeAttempted = false;
+
+    // Compression, used in both directions if both sides prefer it
+    boolean compressionPreferred = false;
+    volatile boolean compressed = false;
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    // Forward error correction
+    volatile int fecGroupSize = 0;
+    volatile int fecParityCount = 1;
+    final FecEncoder fecEncoder = new FecEncoder();
+    final FecDecoder fecDecoder = new FecDecoder();
+
+    /**
+     * Follows every group of data chunks by parity chunks, from which the remote can rebuild lost chunks of the group
+     * without waiting for retransmission. Costs parityCount / groupSize of extra bandwidth. Only used if the remote supports it.
+     * The parities are sent over a different path than most of the group when one is available.
+     * @param groupSize number of data chunks per group, 0 (default) disables
+     * @see #setFecParityCount(int)
+     */
+    public void setFecGroupSize(int groupSize) {
+        if (groupSize < 0 || groupSize > FecDecoder.MAX_GROUP_SIZE) throw new IllegalArgumentException("Group size must be between 0 and " + FecDecoder.MAX_GROUP_SIZE);
+        this.fecGroupSize = groupSize;
+    }
+    public int getFecGroupSize() {
+        return fecGroupSize;
+    }
+
+    /**
+     * Parity j of a group covers the chunks at positions j, j + parityCount, j + 2 * parityCount... of the group,
+     * so any run of up to parityCount consecutive lost chunks can be rebuilt. Applied from the next group on.
+     * @param parityCount number of parity chunks per group, 1 (default) to {@link FecDecoder#MAX_GROUP_SIZE}
+     */
+    public void setFecParityCount(int parityCount) {
+        if (parityCount < 1 || parityCount > FecDecoder.MAX_GROUP_SIZE) throw new IllegalArgumentException("Parity count must be between 1 and " + FecDecoder.MAX_GROUP_SIZE);
+        this.fecParityCount = parityCount;
+    }
+    public int getFecParityCount() {
+        return fecParityCount;
+    }
+    boolean isFecEnabled() {
+        return fecGroupSize > 0 && remoteOptions.supports(SessionOptions.FEATURE_FEC);
+    }
+
+    final ChunkFragments fragments = new ChunkFragments();
 
     // Acks
-    final ArrayList<AckBundle> pendingAcks = new ArrayList<>();
+    final AckTracker pendingAcks = new AckTracker();
 
 
-    void onReceivedAck(int startSeq, int count) {
-        if (startSeq == latestConfirmedSeqId + 1) latestConfirmedSeqId = startSeq + count - 1;
+    /**
+     * Handles all ack ranges of one packet
+     * @param startSeqs start of each range, empty if all ranges start at 1
+     * @param counts length of each range, empty if all ranges have length 1
+     */
+    void onReceivedAcks(List<Integer> startSeqs, List<Integer> counts) {
+        final int ranges = startSeqs.isEmpty() || counts.isEmpty() ? Math.max(startSeqs.size(), counts.size()) : Math.min(startSeqs.size(), counts.size());
+        if (ranges == 0) return;
+        final long now = System.currentTimeMillis();
 
         synchronized (sentQ) {
-            sentQ.entrySet().removeIf(entry -> {
-                boolean acked = entry.getKey().sequenceId >= startSeq && entry.getKey().sequenceId < startSeq + count;
-                if (acked) {
-                    entry.getValue().sentBy.onWinsizeAckReceived(remoteIdentifier, (int) (System.currentTimeMillis() - entry.getValue().sentAt));
+            HashMap<ClientMessageWorker, Long> latestAckedSentAt = null;
+            int highestAcked = Integer.MIN_VALUE;
+            for (int i = 0; i < ranges; i++) {
+                final int startSeq = startSeqs.isEmpty() ? 1 : startSeqs.get(i);
+                final int count = counts.isEmpty() ? 1 : counts.get(i);
+                // Ranges come from the remote, only the part covering sent chunks is used
+                if (count <= 0 || startSeq <= 0 || startSeq > latestSentSeqId) continue;
+                final int endSeq = (int) Math.min((long) startSeq + count, (long) latestSentSeqId + 1);
+
+                latestAckedSentAt = ackRange(startSeq, endSeq, now, latestAckedSentAt);
+                highestAcked = Math.max(highestAcked, endSeq - 1);
+            }
+
+            // Fast retransmit: a chunk sent earlier over the same path is missing while later ones got through.
+            // Counted at most once per packet, no matter how many ranges it carries
+            if (latestAckedSentAt != null) {
+                final Iterator<SentLog> missing = sentQ.headMap(highestAcked).values().iterator();
+                while (missing.hasNext()) {
+                    final SentLog sent = missing.next();
+                    final Long ackedSentAt = latestAckedSentAt.get(sent.sentBy);
+                    if (ackedSentAt != null && sent.sentAt <= ackedSentAt && ++sent.gapAcks >= FAST_RETRANSMIT_THRESHOLD) {
+                        sent.sentBy.onWinsizeFastRetransmit(winSizeKey);
+                        if (sent.copiesBy != null) sent.copiesBy.forEach(cm -> cm.onWinsizeFastRetransmit(winSizeKey));
+                        sent.chunk.retransmitted = true;
+                        mtuProber.onLost(sent.sentSize);
+                        resendQ.put(sent.chunk.sequenceId, sent.chunk);
+                        missing.remove();
+                    }
                 }
-                return acked;
-            });
-            resendQ.removeIf(entry -> entry.sequenceId >= startSeq && entry.sequenceId < startSeq + count);
+            }
 
-            if (sentQ.isEmpty()) {
-                latestConfirmedSeqId = latestSentSeqId;
-            } else {
-                sentQ.keySet().stream().min(Comparator.comparingInt(dc -> dc.sequenceId)).ifPresent(dc -> latestConfirmedSeqId = dc.sequenceId - 1);
+            // Chunks waiting for retransmission are unconfirmed as well
+            int lowestUnconfirmed = sentQ.isEmpty() ? Integer.MAX_VALUE : sentQ.firstKey();
+            if (!resendQ.isEmpty()) lowestUnconfirmed = Math.min(lowestUnconfirmed, resendQ.firstKey());
+            latestConfirmedSeqId = lowestUnconfirmed == Integer.MAX_VALUE ? latestSentSeqId : lowestUnconfirmed - 1;
+
+            sentBytesIntegral.headMap(latestConfirmedSeqId).clear();
+        }
+        signalFlushProgress();
+    }
+
+    /**
+     * Must be called with sentQ locked
+     * @param endSeq exclusive, greater than startSeq
+     * @return latest send time of acked chunks per worker, updated with this range
+     */
+    private HashMap<ClientMessageWorker, Long> ackRange(int startSeq, int endSeq, long now, HashMap<ClientMessageWorker, Long> latestAckedSentAt) {
+        final SortedMap<Integer, SentLog> acked = sentQ.subMap(startSeq, endSeq);
+        for (SentLog sent : acked.values()) {
+            mtuProber.onAcked(sent.sentSize, sent.chunk.retransmitted);
+            sent.sentBy.onWinsizeAckReceived(winSizeKey, (int) (now - sent.sentAt), sent.chunk.retransmitted);
+            if (sent.copiesBy != null) {
+                // It is not known which copy arrived, so the copies only release their window
+                for (ClientMessageWorker cm : sent.copiesBy) cm.onWinsizeAckReceived(winSizeKey, -1, true);
             }
+            if (latestAckedSentAt == null) latestAckedSentAt = new HashMap<>();
+            latestAckedSentAt.merge(sent.sentBy, sent.sentAt, Math::max);
+        }
+        acked.clear();
+        resendQ.subMap(startSeq, endSeq).clear();
+        return latestAckedSentAt;
+    }
 
-            sentBytesIntegral.entrySet().removeIf(entry -> entry.getKey() < latestConfirmedSeqId);
+    /**
+     * Moves all chunks sent over the given worker back to the resend queue, used when its connection broke and they are likely lost
+     */
+    void requeueSentBy(ClientMessageWorker cm) {
+        synchronized (sentQ) {
+            final Iterator<SentLog> it = sentQ.values().iterator();
+            while (it.hasNext()) {
+                final SentLog sent = it.next();
+                if (sent.sentBy != cm) continue;
+
+                sent.sentBy.onWinsizeDropped(winSizeKey);
+                if (sent.copiesBy != null) sent.copiesBy.forEach(c -> c.onWinsizeDropped(winSizeKey));
+                sent.chunk.retransmitted = true;
+                resendQ.put(sent.chunk.sequenceId, sent.chunk);
+                it.remove();
+            }
         }
     }
 
-    void onReceivedChunk(int sequenceId, ByteString data, ClientMessageWorker from) {
-        if (is.onReceivedDataChunk(sequenceId, data)) {
+    private final Object flushSignal = new Object();
 
-            synchronized (pendingAcks) {
-                // Check for appends
-                int appendedI = -1;
-                boolean within = false;
-                for (int i = 0; i < pendingAcks.size(); i++) {
-                    AckBundle ack = pendingAcks.get(i);
-                    if (ack.worker != from) continue;
-
-                    if (ack.startSeq + ack.count == sequenceId) {
-                        ack.count += 1;
-                        appendedI = i;
-                        break;
-                    }
-                    if (ack.startSeq >= sequenceId && ack.startSeq + ack.count < sequenceId) {
-                        within = true;
-                        break;
-                    }
-                }
-                // Check for prepends
-                if (!within) {
-                    int mergedI = -1;
-                    boolean prepended = false;
-                    for (int i = 0; i < pendingAcks.size(); i++) {
-                        AckBundle ack = pendingAcks.get(i);
-                        if (ack.worker != from) continue;
-
-                        if (ack.startSeq - 1 == sequenceId) {
-                            ack.startSeq -= 1;
-                            ack.count += 1;
-                            prepended = true;
-                            if (appendedI != -1) {
-                                AckBundle newAck = pendingAcks.get(appendedI);
-                                newAck.count += ack.count - 1;
-                                mergedI = i;
-                            }
-                            break;
-                        }
-                    }
-                    if (mergedI != -1) pendingAcks.remove(mergedI);
+    /**
+     * Wakes writers blocked in {@link #waitForWindow()}, called whenever the unconfirmed bytes may have dropped,
+     * the window changed or the session went down
+     */
+    void signalFlushProgress() {
+        synchronized (flushSignal) {
+            flushSignal.notifyAll();
+        }
+        notifyChannel();
+    }
 
-                    if (appendedI == -1 && !prepended) {
-                        pendingAcks.add(new AckBundle(from, sequenceId, 1));
-                    }
-                }
+    boolean isWindowAvailable() {
+        synchronized (sentQ) {
+            return sentBytesIntegral.get(latestSentSeqId) - remoteBytesRead.get() + sendQBytes.get() <= winSize;
+        }
+    }
+
+    void waitForWindow() throws InterruptedException {
+        synchronized (flushSignal) {
+            while (!isWindowAvailable() && !isClosed && !isBroken) {
+                flushSignal.wait();
             }
         }
     }
 
+    void onReceivedChunk(int sequenceId, ByteString data) {
+        if (is.onReceivedDataChunk(sequenceId, data)) {
+            pendingAcks.add(sequenceId);
+            fecDecoder.onChunk(sequenceId, data, this::onReceivedChunk);
+        }
+    }
+
+    void onReceivedFragment(int sequenceId, int chunkSize, int offset, ByteString piece) {
+        final ByteString chunk = fragments.onFragment(sequenceId, chunkSize, offset, piece);
+        if (chunk != null) onReceivedChunk(sequenceId, chunk);
+    }
+
+    void onReceivedParity(ByteString parity) {
+        fecDecoder.onParity(parity, this::onReceivedChunk);
+    }
+
     public void close() {
         synchronized (this) {
             if (isClosing) return;
@@ -205,34 +385,50 @@ public class Session {
                 } catch (IOException ignored) {}
             }
         }
-    }
-
-    static class AckBundle {
-        final ClientMessageWorker worker;
-        int startSeq;
-        int count;
-        AckBundle(ClientMessageWorker w, int startSeq, int count) {
-            this.worker = w;
-            this.startSeq = startSeq;
-            this.count = count;
-        }
+        signalFlushProgress();
+        handler.wakeUp();
     }
 
     static class DataChunk {
         final int sequenceId;
         final ByteString data;
+        volatile boolean retransmitted = false;
         DataChunk(int sequenceId, ByteString data) {
             this.sequenceId = sequenceId;
             this.data = data;
         }
     }
 
-    static class SentLog {
+    /**
+     * Ordered by the time the chunk is considered lost, so that the handler only looks at expired ones
+     */
+    static class SentLog implements Delayed {
+        final Session session;
+        final DataChunk chunk;
         final long sentAt;
         final ClientMessageWorker sentBy;
-        SentLog(long sentAt, ClientMessageWorker sentBy) {
+        final List<ClientMessageWorker> copiesBy;
+        int gapAcks = 0;
+        int sentSize; // Largest packet the chunk went out in, smaller than the chunk if it was resent in fragments
+        long resendAt;
+        SentLog(Session session, DataChunk chunk, long sentAt, ClientMessageWorker sentBy, List<ClientMessageWorker> copiesBy) {
+            this.session = session;
+            this.chunk = chunk;
             this.sentAt = sentAt;
             this.sentBy = sentBy;
+            this.copiesBy = copiesBy;
+            this.sentSize = chunk.data.size();
+            this.resendAt = sentAt + sentBy.getTrackedRto(session.winSizeKey);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(resendAt + 1 - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(resendAt, ((SentLog) o).resendAt);
         }
     }
 }
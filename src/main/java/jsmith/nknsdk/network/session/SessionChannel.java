@@ -0,0 +1,84 @@
+package jsmith.nknsdk.network.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking view of a session. Reads return 0 when there is no data and writes accept only what fits in the window.
+ * Readiness is reported through a listener or a {@link SessionSelector}, so a single thread can serve many sessions.
+ * Do not mix with blocking reads or writes on the session streams.
+ */
+public class SessionChannel implements ByteChannel {
+
+    private final Session s;
+    private volatile Consumer<SessionChannel> readinessListener = null;
+    final CopyOnWriteArrayList<SessionSelector.Key> keys = new CopyOnWriteArrayList<>();
+
+    SessionChannel(Session s) {
+        this.s = s;
+    }
+
+    /**
+     * @return number of bytes read, 0 if no data is available, -1 if the remote closed the session and all data was read
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return s.is.readNonBlocking(dst);
+    }
+
+    /**
+     * @return number of bytes written, 0 if the window is full
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        return s.os.writeNonBlocking(src);
+    }
+
+    public boolean isReadable() {
+        return s.is.isReadable();
+    }
+
+    public boolean isWritable() {
+        return isOpen() && s.os.getFreeWindow() > 0;
+    }
+
+    int readyOps() {
+        return (isReadable() ? SessionSelector.OP_READ : 0) | (isWritable() ? SessionSelector.OP_WRITE : 0);
+    }
+
+    /**
+     * @param listener called whenever the channel may have become readable or writable. Runs on network threads, must not block
+     */
+    public void setReadinessListener(Consumer<SessionChannel> listener) {
+        this.readinessListener = listener;
+        if (listener != null && readyOps() != 0) listener.accept(this);
+    }
+
+    void onReadinessChanged() {
+        final Consumer<SessionChannel> listener = readinessListener;
+        if (listener != null) listener.accept(this);
+        for (SessionSelector.Key key : keys) {
+            key.signal();
+        }
+    }
+
+    public Session getSession() {
+        return s;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !s.isClosing && !s.isClosed;
+    }
+
+    @Override
+    public void close() {
+        s.close();
+    }
+
+}
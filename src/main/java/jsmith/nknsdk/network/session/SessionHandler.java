@@ -3,8 +3,10 @@ package jsmith.nknsdk.network.session;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import jsmith.nknsdk.client.NKNClientException;
+import jsmith.nknsdk.network.AimdCongestionController;
 import jsmith.nknsdk.network.ClientMessageWorker;
 import jsmith.nknsdk.network.ClientTunnel;
+import jsmith.nknsdk.network.CongestionController;
 import jsmith.nknsdk.network.ConnectionProvider;
 import jsmith.nknsdk.network.proto.MessagesP;
 import jsmith.nknsdk.utils.Crypto;
@@ -14,17 +16,23 @@ import org.slf4j.LoggerFactory;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  *
  */
 public class SessionHandler extends Thread {
 
-    public static final int MAX_MTU = 1024;
+    // Sessions advertise the DEFAULT_MTU unless a larger one is requested explicitly (up to MAX_MTU), as peers may assume
+    // chunks of at most 1024 bytes. Above DEFAULT_MTU, chunk size is probed starting from DEFAULT_MTU
+    public static final int DEFAULT_MTU = 1024;
+    public static final int MAX_MTU = 64 * 1024;
     public static final int MAX_WIN_SIZE = 4 * 1024 * 1024;
     public static final int MAX_MULTICLIENTS = 16;
     public static final int DEFAULT_MULTICLIENTS = 4;
+    public static final int MAX_EARLY_DATA = DEFAULT_MTU;
 
     private static final Logger LOG = LoggerFactory.getLogger(SessionHandler.class);
 
@@ -37,6 +45,18 @@ public class SessionHandler extends Thread {
     }
 
     public Session dialSession(String destinationFullIdentifier, int multiclientsCount, String[] targetPrefixes, int maxMtu, int maxWindowSize) throws NKNClientException {
+        return dialSession(destinationFullIdentifier, multiclientsCount, targetPrefixes, maxMtu, maxWindowSize, AimdCongestionController::new);
+    }
+
+    public Session dialSession(String destinationFullIdentifier, int multiclientsCount, String[] targetPrefixes, int maxMtu, int maxWindowSize, Supplier<CongestionController> congestionControl) throws NKNClientException {
+        return dialSession(destinationFullIdentifier, multiclientsCount, targetPrefixes, maxMtu, maxWindowSize, congestionControl, null);
+    }
+
+    /**
+     * @param earlyData first bytes of the session, sent along with the handshake so they arrive one round trip sooner.
+     *                  At most {@link #MAX_EARLY_DATA} bytes, null for none. Disables compression of the session.
+     */
+    public Session dialSession(String destinationFullIdentifier, int multiclientsCount, String[] targetPrefixes, int maxMtu, int maxWindowSize, Supplier<CongestionController> congestionControl, byte[] earlyData) throws NKNClientException {
         if (isClosing) throw new IllegalStateException("SessionHandler is in closed state, cannot dial session");
 
         final int multiclients = Math.min(multiclientsCount, MAX_MULTICLIENTS);
@@ -54,7 +74,14 @@ public class SessionHandler extends Thread {
             }
         }
 
-        final Session s = new Session(this, prefixes, multiclients, destinationFullIdentifier, ByteString.copyFrom(Crypto.nextRandom8B()), maxMtu, maxWindowSize);
+        final Session s = new Session(this, prefixes, multiclients, destinationFullIdentifier, ByteString.copyFrom(Crypto.nextRandom8B()), Math.min(maxMtu, MAX_MTU), maxWindowSize, congestionControl);
+        s.isDialer = true;
+        if (earlyData != null && earlyData.length > 0) {
+            if (earlyData.length > MAX_EARLY_DATA) throw new IllegalArgumentException("Early data can't be longer than " + MAX_EARLY_DATA + " bytes");
+            s.earlyData = ByteString.copyFrom(earlyData);
+            s.os.reserveEarlyDataSequenceId();
+        }
+        s.compressionPreferred = compression && s.earlyData == null; // Early data is never compressed, the inflater would start mid stream
         activeSessions.put(new SessionKey(destinationFullIdentifier, s.sessionId), s);
         LOG.info("Dialing session");
         establishSession(s);
@@ -72,9 +99,12 @@ public class SessionHandler extends Thread {
 
     private final ConcurrentHashMap<SessionKey, Session> activeSessions = new ConcurrentHashMap<>();
 
-    private int preferredMtu = MAX_MTU, preferredMulticlients = DEFAULT_MULTICLIENTS, preferredWinSize = MAX_WIN_SIZE;
+    private int preferredMtu = DEFAULT_MTU, preferredMulticlients = DEFAULT_MULTICLIENTS, preferredWinSize = MAX_WIN_SIZE;
+    /**
+     * @param preferredMtu largest chunk size accepted from dialers, {@link #DEFAULT_MTU} by default, at most {@link #MAX_MTU}
+     */
     public void setIncomingPreferredMtu(int preferredMtu) {
-        this.preferredMtu = preferredMtu;
+        this.preferredMtu = Math.min(preferredMtu, MAX_MTU);
     }
     public void setIncomingPreferredMulticlients(int preferredMulticlients) {
         this.preferredMulticlients = preferredMulticlients;
@@ -82,6 +112,19 @@ public class SessionHandler extends Thread {
     public void setIncomingPreferredWinSize(int preferredWinSize) {
         this.preferredWinSize = preferredWinSize;
     }
+    private Supplier<CongestionController> incomingCongestionControl = AimdCongestionController::new;
+    public void setIncomingCongestionControl(Supplier<CongestionController> congestionControl) {
+        this.incomingCongestionControl = congestionControl;
+    }
+    private boolean compression = false;
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+    private PathScheduler pathScheduler = new WeightedPathScheduler();
+    public void setPathScheduler(PathScheduler pathScheduler) {
+        if (pathScheduler == null) throw new NullPointerException("Path scheduler is null");
+        this.pathScheduler = pathScheduler;
+    }
 
     public void onMessage(ClientMessageWorker cmw, String fromRaw, ByteString sessionId, ByteString bytes) {
         String prefix = fromRaw.contains(".") ? fromRaw.substring(0, fromRaw.indexOf(".")) : "";
@@ -103,6 +146,7 @@ public class SessionHandler extends Thread {
                 synchronized (s.lock) {
                     if (s.isClosed) return;
                     s.lastReceivedPacket = System.currentTimeMillis();
+                    s.resumeAttempted = false;
 
                     if (data.getHandshake()) {
                         if (!isClosing) {
@@ -115,9 +159,10 @@ public class SessionHandler extends Thread {
                                     LOG.warn("Failed to create multiclients", e);
                                 }
                                 for (int i = 0; i < s.ownMulticlients; i++) {
-                                    ct.multiclients.get(i).getAssociatedCM().trackWinSize(s.remoteIdentifier, ClientMessageWorker.DEFAULT_INITIAL_CONNECTION_WINSIZE);
+                                    ct.multiclients.get(i).getAssociatedCM().trackWinSize(s.winSizeKey, s.congestionControl.get());
                                 }
 
+                                s.remoteOptions = SessionOptions.decode(data.getData());
                                 final int mtu = data.getMtu();
                                 final int winSize = data.getWindowSize();
                                 s.establishSession(
@@ -126,13 +171,23 @@ public class SessionHandler extends Thread {
                                         Math.min(s.prefixes.size(), s.ownMulticlients),
                                         Math.min(winSize, s.winSize)
                                 );
-
+                                if (s.earlyData != null) {
+                                    trackEarlyData(s);
+                                }
 
                                 LOG.info("Session has been established");
                                 if (s.onSessionEstablishedCb != null) {
                                     s.onSessionEstablishedCalled = true;
                                     s.onSessionEstablishedCb.run();
                                 }
+                            } else {
+                                final SessionOptions options = SessionOptions.decode(data.getData());
+                                if (options.resume != 0) {
+                                    onResumeHandshake(s, cmw, options.resume, data.getBytesRead());
+                                } else if (options.earlyData != null && !s.isDialer) {
+                                    // The copy carrying early data arrived after another one established the session
+                                    s.onReceivedChunk(1, options.earlyData);
+                                }
                             }
                         } else {
                             if (s.isEstablished) {
@@ -141,30 +196,26 @@ public class SessionHandler extends Thread {
                         }
                     } else {
                         final int sequenceId = data.getSequenceId();
-                        final int ackSeqLength = data.getAckStartSeqCount();
                         final long bytesRead = data.getBytesRead();
 
-                        if (sequenceId != 0) {
-                            s.onReceivedChunk(sequenceId, data.getData(), cmw);
+                        if (sequenceId != 0 && data.getMtu() != 0) {
+                            s.onReceivedFragment(sequenceId, data.getMtu(), data.getWindowSize(), data.getData());
+                        } else if (sequenceId != 0) {
+                            s.onReceivedChunk(sequenceId, data.getData());
+                        } else if (!data.getData().isEmpty()) {
+                            s.onReceivedParity(data.getData());
                         }
-                        if (ackSeqLength > 0) {
-                            for (int i = 0; i < ackSeqLength; i++) {
-                                int count = 1;
-                                if (data.getAckSeqCountCount() > 0) count = data.getAckSeqCount(i);
-                                s.onReceivedAck(data.getAckStartSeq(i), count);
-                            }
-                        } else if (data.getAckSeqCountCount() > 0) {
-                            for (int i = 0; i < data.getAckSeqCountCount(); i++) {
-                                s.onReceivedAck(1, data.getAckSeqCount(i));
-                            }
+                        s.onReceivedAcks(data.getAckStartSeqList(), data.getAckSeqCountList());
+                        if (s.remoteBytesRead.getAndUpdate(br -> Math.max(bytesRead, br)) < bytesRead) {
+                            s.signalFlushProgress();
                         }
-                        s.remoteBytesRead.updateAndGet(br -> Math.max(bytesRead, br));
                         if (data.getClose()) { // Close request
                             LOG.debug("Received a close packet");
                             s.close();
                             s.getInputStream().sessionClosed();
                             if (s.isClosedOutbound) {
                                 s.isClosed = true;
+                                untrackWinSizes(s);
                                 if (isClosing) activeSessions.remove(sk);
                             }
                         }
@@ -173,12 +224,14 @@ public class SessionHandler extends Thread {
 
             } else {
                 if (!isClosing) {
-                    if (data.getHandshake()) {
+                    if (data.getHandshake() && SessionOptions.decode(data.getData()).resume == 0) { // Resuming a session we don't know, ignore
                         final int mtu = data.getMtu();
                         final int winSize = data.getWindowSize();
 
-                        s = new Session(this, data.getClientIdsList(), Math.min(preferredMulticlients, data.getClientIdsCount()), from, sessionId, Math.min(mtu, preferredMtu), Math.min(preferredWinSize, winSize));
+                        s = new Session(this, data.getClientIdsList(), Math.min(preferredMulticlients, data.getClientIdsCount()), from, sessionId, Math.min(mtu, preferredMtu), Math.min(preferredWinSize, winSize), incomingCongestionControl);
                         s.lastReceivedPacket = System.currentTimeMillis();
+                        s.remoteOptions = SessionOptions.decode(data.getData());
+                        s.compressionPreferred = compression;
 
                         synchronized (s.lock) {
 
@@ -192,11 +245,14 @@ public class SessionHandler extends Thread {
                                     LOG.warn("Failed to create multiclients", e);
                                 }
                                 for (int i = 0; i < s.ownMulticlients; i++) {
-                                    ct.multiclients.get(i).getAssociatedCM().trackWinSize(s.remoteIdentifier, ClientMessageWorker.DEFAULT_INITIAL_CONNECTION_WINSIZE);
+                                    ct.multiclients.get(i).getAssociatedCM().trackWinSize(s.winSizeKey, s.congestionControl.get());
                                 }
 
                                 establishSession(s);
                                 s.establishSession(s.prefixes, s.mtu, Math.min(Math.min(MAX_MULTICLIENTS, preferredMulticlients), s.ownMulticlients), s.winSize);
+                                if (s.remoteOptions.earlyData != null) {
+                                    s.onReceivedChunk(1, s.remoteOptions.earlyData); // Acked along with the next packet
+                                }
                                 LOG.info("Reply sent with session establishment confirmation");
                                 if (s.onSessionEstablishedCb != null) {
                                     s.onSessionEstablishedCalled = true;
@@ -215,6 +271,7 @@ public class SessionHandler extends Thread {
         } catch (InvalidProtocolBufferException e) {
             LOG.warn("Invalid session packet received", e);
         }
+        wakeUp();
     }
 
 
@@ -225,38 +282,108 @@ public class SessionHandler extends Thread {
             isClosing = true;
             activeSessions.values().forEach(Session::close);
             activeSessions.entrySet().removeIf(e -> e.getValue().isClosed);
+            wakeUp();
         }
         closingLatch.await();
     }
 
+    // Resend timers of all sessions, entries of acked chunks are dropped once they expire
+    private final DelayQueue<Session.SentLog> resendTimers = new DelayQueue<>();
+
+    /**
+     * Must be called with sentQ locked
+     */
+    private void trackSent(Session s, Session.SentLog sent) {
+        s.sentQ.put(sent.chunk.sequenceId, sent);
+        resendTimers.add(sent);
+    }
+
+    /**
+     * Moves the chunk to the resend queue if it is still unacked and its timeout expired with the current RTO of the path
+     */
+    private void onResendTimer(Session.SentLog sent, long now) {
+        final Session s = sent.session;
+        synchronized (s.sentQ) {
+            if (s.isClosed || s.sentQ.get(sent.chunk.sequenceId) != sent) return;
+
+            final long resendAt = sent.sentAt + sent.sentBy.getTrackedRto(s.winSizeKey);
+            if (now <= resendAt) {
+                sent.resendAt = resendAt; // RTO grew since the chunk was sent
+                resendTimers.add(sent);
+                return;
+            }
+            sent.sentBy.onWinsizeAckTimeout(s.winSizeKey);
+            if (sent.copiesBy != null) sent.copiesBy.forEach(cm -> cm.onWinsizeAckTimeout(s.winSizeKey));
+            sent.chunk.retransmitted = true;
+            s.mtuProber.onLost(sent.sentSize);
+            s.resendQ.put(sent.chunk.sequenceId, sent.chunk);
+            s.sentQ.remove(sent.chunk.sequenceId);
+        }
+    }
+
+    private final Object wakeUpSignal = new Object();
+    private boolean wokenUp = false;
+
+    /**
+     * Makes the handler re-check all sessions as soon as possible. Called whenever there is new data to send,
+     * new acks to send or process, a window may have opened or a session changed state.
+     */
+    void wakeUp() {
+        synchronized (wakeUpSignal) {
+            wokenUp = true;
+            wakeUpSignal.notify();
+        }
+    }
+
     @Override
     public void run() {
         while (!isClosing || !activeSessions.isEmpty()) {
+            synchronized (wakeUpSignal) {
+                wokenUp = false;
+            }
+
+            long nextDeadline = Long.MAX_VALUE;
+            Session.SentLog expired;
+            while ((expired = resendTimers.poll()) != null) {
+                onResendTimer(expired, System.currentTimeMillis());
+            }
+            final Session.SentLog nextResend = resendTimers.peek();
+            if (nextResend != null) nextDeadline = nextResend.resendAt + 1;
+
             for (Session s : activeSessions.values()) {
-                synchronized (s.sentQ) {
-                    final Iterator<Map.Entry<Session.DataChunk, Session.SentLog>> iterator = s.sentQ.entrySet().iterator();
-                    while (iterator.hasNext()) {
-                        final Map.Entry<Session.DataChunk, Session.SentLog> sent = iterator.next();
-                        if (System.currentTimeMillis() - sent.getValue().sentAt > sent.getValue().sentBy.getTrackedRto(s.remoteIdentifier)) {
-                            sent.getValue().sentBy.onWinsizeAckTimeout(s.remoteIdentifier);
-                            s.resendQ.add(sent.getKey());
-                            iterator.remove();
-                        }
-                    }
+                final long now = System.currentTimeMillis();
+                if (s.isEstablished && !s.isClosedOutbound && !s.isClosing) {
+                    nextDeadline = Math.min(nextDeadline, s.getOutputStream().timedFlush(now));
                 }
-                if (s.isEstablished && !s.isClosedOutbound && !s.isClosing) s.getOutputStream().timedFlush();
-                if (System.currentTimeMillis() - s.lastReceivedPacket > ConnectionProvider.sessionTimeoutMS() && s.lastReceivedPacket != -1) {
-                    if (!s.isClosed && !s.isBroken) {
-                        s.isBroken = true;
-                        if (s.onSessionBrokenCb != null && !s.onSessionBrokenCalled) {
-                            s.onSessionBrokenCalled = true;
-                            s.onSessionBrokenCb.run();
+                if (s.lastReceivedPacket != -1) {
+                    final long timeoutAt = s.lastReceivedPacket + ConnectionProvider.sessionTimeoutMS();
+                    if (now > timeoutAt) {
+                        if (!s.isClosed && !s.isBroken && s.isEstablished && !s.resumeAttempted && s.remoteOptions.supports(SessionOptions.FEATURE_RESUME)) {
+                            // Last try, the remote may have reconnected and lost packets, ask it to resume
+                            s.resumeAttempted = true;
+                            LOG.debug("Session timed out, trying to resume");
+                            for (int i = 0; i < s.ownMulticlients && i < s.prefixes.size(); i++) {
+                                sendResumeHandshake(s, i, SessionOptions.RESUME_REQUEST);
+                            }
+                            s.lastReceivedPacket = now;
+                            nextDeadline = Math.min(nextDeadline, now + ConnectionProvider.sessionTimeoutMS() + 1);
+                        } else if (!s.isClosed && !s.isBroken) {
+                            s.isBroken = true;
+                            s.signalFlushProgress();
+                            if (s.onSessionBrokenCb != null && !s.onSessionBrokenCalled) {
+                                s.onSessionBrokenCalled = true;
+                                s.onSessionBrokenCb.run();
+                            }
+                            s.close();
+                            s.lastReceivedPacket = System.currentTimeMillis();
+                            nextDeadline = Math.min(nextDeadline, s.lastReceivedPacket + ConnectionProvider.sessionTimeoutMS() + 1);
+                        } else {
+                            s.isClosed = true;
+                            untrackWinSizes(s);
+                            activeSessions.remove(new SessionKey(s.remoteIdentifier, s.sessionId));
                         }
-                        s.close();
-                        s.lastReceivedPacket = System.currentTimeMillis();
                     } else {
-                        s.isClosed = true;
-                        activeSessions.remove(new SessionKey(s.remoteIdentifier, s.sessionId));
+                        nextDeadline = Math.min(nextDeadline, timeoutAt + 1);
                     }
                 }
             }
@@ -267,45 +394,65 @@ public class SessionHandler extends Thread {
                 for (Session s : activeSessions.values()) {
                     if (s.isEstablished && !s.isClosedOutbound) {
                         try {
-                            final ArrayList<Integer> availableMulticlients = new ArrayList<>(s.ownMulticlients);
+                            while (s.paths.size() < s.ownMulticlients) {
+                                final PathScheduler.Path path = new PathScheduler.Path();
+                                path.index = s.paths.size();
+                                s.paths.add(path);
+                            }
+                            s.availablePaths.clear();
                             for (int i = 0; i < s.ownMulticlients; i++) {
-                                if (ct.multiclients.get(i).getAssociatedCM().isWinSizeAvailable(s.remoteIdentifier)) {
-                                    availableMulticlients.add(i);
+                                final ClientMessageWorker cm = ct.multiclients.get(i).getAssociatedCM();
+                                if (cm.isWinSizeAvailable(s.winSizeKey)) {
+                                    final PathScheduler.Path path = s.paths.get(i);
+                                    path.srtt = cm.getTrackedSrtt(s.winSizeKey);
+                                    path.lossRate = cm.getTrackedLossRate(s.winSizeKey);
+                                    path.freeWindow = cm.getTrackedFreeWindow(s.winSizeKey);
+                                    s.availablePaths.add(path);
                                 }
                             }
-                            if (!availableMulticlients.isEmpty()) {
-                                int workerI = availableMulticlients.get((int)(Math.random() * availableMulticlients.size()));
+                            if (!s.availablePaths.isEmpty()) {
+                                int workerI = s.availablePaths.get(pathScheduler.choose(s.availablePaths)).index;
 
                                 String chosenRemote = s.prefixes.get(workerI) + "." + s.remoteIdentifier;
                                 if (chosenRemote.startsWith(".")) chosenRemote = chosenRemote.substring(1);
-                                remaining |= flushDataChunk(s, ct.multiclients.get(workerI).getAssociatedCM(), chosenRemote);
-
-                                if (s.lastSentBytesRead == s.bytesRead.get() && System.currentTimeMillis() - s.lastSentBytesReadTime < 5000) {
-                                    long bytesRead = s.bytesRead.get();
-                                    MessagesP.SessionData.Builder packetBuilder = MessagesP.SessionData.newBuilder()
-                                            .setSequenceId(0)
-                                            .setBytesRead(bytesRead)
-                                            .setHandshake(false)
-                                            .setClose(false);
-
-                                    for (int worker : availableMulticlients) {
-
-                                        chosenRemote = s.prefixes.get(worker) + "." + s.remoteIdentifier;
-                                        if (chosenRemote.startsWith(".")) chosenRemote = chosenRemote.substring(1);
-                                        if (s.lastSentBytesRead < bytesRead) {
-                                            ct.multiclients.get(worker).getAssociatedCM().sendMessageAsync(
-                                                    Collections.singletonList(chosenRemote), s.sessionId, MessagesP.PayloadType.SESSION,
-                                                    packetBuilder.build().toByteString());
-                                        }
+                                s.redundantPaths.clear();
+                                if (s.redundancy > 1 && s.availablePaths.size() > 1) {
+                                    s.pathCandidates.clear();
+                                    for (PathScheduler.Path p : s.availablePaths) {
+                                        if (p.index != workerI) s.pathCandidates.add(p);
+                                    }
+                                    while (s.redundantPaths.size() < s.redundancy - 1 && !s.pathCandidates.isEmpty()) {
+                                        s.redundantPaths.add(s.pathCandidates.remove(pathScheduler.choose(s.pathCandidates)));
+                                    }
+                                }
+                                remaining |= flushDataChunk(s, workerI, ct.multiclients.get(workerI).getAssociatedCM(), chosenRemote);
+
+                                // Let the remote know about the read data, even if there is nothing else to send
+                                final long bytesRead = s.bytesRead.get();
+                                if (s.lastSentBytesRead < bytesRead) {
+                                    final long updateAt = s.lastSentBytesReadTime + SessionOutputStream.FLUSH_INTERVAL_MS;
+                                    if (System.currentTimeMillis() >= updateAt) {
+                                        MessagesP.SessionData packet = MessagesP.SessionData.newBuilder()
+                                                .setSequenceId(0)
+                                                .setBytesRead(bytesRead)
+                                                .setHandshake(false)
+                                                .setClose(false)
+                                                .build();
+
+                                        ct.multiclients.get(workerI).getAssociatedCM().sendMessageAsync(
+                                                Collections.singletonList(chosenRemote), s.sessionId, MessagesP.PayloadType.SESSION,
+                                                packet.toByteString());
+                                        s.lastSentBytesRead = bytesRead;
+                                        s.lastSentBytesReadTime = System.currentTimeMillis();
+                                    } else {
+                                        nextDeadline = Math.min(nextDeadline, updateAt);
                                     }
-                                    s.lastSentBytesRead = bytesRead;
-                                    s.lastSentBytesReadTime = System.currentTimeMillis();
                                 }
                             }
 
                         } catch (InterruptedException ignored) {}
                     }
-                    if (s.isClosing && !s.isClosedOutbound && s.sentBytesIntegral.get(s.latestSentSeqId) - s.sentBytesIntegral.get(s.latestConfirmedSeqId) + s.sendQ.stream().mapToInt(dc -> dc.data.size()).sum() == 0) {
+                    if (s.isClosing && !s.isClosedOutbound && s.sentBytesIntegral.get(s.latestSentSeqId) - s.sentBytesIntegral.get(s.latestConfirmedSeqId) + s.sendQBytes.get() == 0) {
                         MessagesP.SessionData closePacket = MessagesP.SessionData.newBuilder()
                                 .setSequenceId(0)
                                 .setClose(true)
@@ -325,26 +472,40 @@ public class SessionHandler extends Thread {
                         s.isClosedOutbound = true;
                         if (s.getInputStream().isClosedInbound) {
                             s.isClosed = true;
+                            untrackWinSizes(s);
                             if (isClosing) activeSessions.remove(new SessionKey(s.remoteIdentifier, s.sessionId));
                         }
                     }
                 }
             }
-            try {
-                Thread.sleep(5);
-            } catch (InterruptedException ignored) {}
+
+            synchronized (wakeUpSignal) {
+                try {
+                    if (!wokenUp) {
+                        if (nextDeadline == Long.MAX_VALUE) {
+                            wakeUpSignal.wait();
+                        } else {
+                            final long wait = nextDeadline - System.currentTimeMillis();
+                            if (wait > 0) wakeUpSignal.wait(wait);
+                        }
+                    }
+                } catch (InterruptedException ignored) {}
+            }
         }
         closingLatch.countDown();
     }
 
-    private boolean flushDataChunk(Session s, ClientMessageWorker chosenWorker, String chosenRemote) throws InterruptedException {
+    private boolean flushDataChunk(Session s, int chosenPath, ClientMessageWorker chosenWorker, String chosenRemote) throws InterruptedException {
         if (!s.isEstablished) return false;
 
         Session.DataChunk dataChunk = null;
-        if (!s.resendQ.isEmpty()) {
-            dataChunk = s.resendQ.take();
+        final Map.Entry<Integer, Session.DataChunk> resend = s.resendQ.pollFirstEntry();
+        if (resend != null) {
+            dataChunk = resend.getValue();
         } else if (!s.sendQ.isEmpty() && s.sentBytesIntegral.get(s.latestSentSeqId) - s.remoteBytesRead.get() + s.sendQ.peek().data.size() <= s.winSize) {
             dataChunk = s.sendQ.take();
+            s.sendQBytes.addAndGet(-dataChunk.data.size());
+            s.signalFlushProgress();
         } else if (s.pendingAcks.isEmpty()) {
             return false;
         }
@@ -357,39 +518,97 @@ public class SessionHandler extends Thread {
                 .setClose(false);
 
 
+        List<ByteString> pieces = null;
         if (dataChunk != null) {
             packetBuilder.setSequenceId(dataChunk.sequenceId);
-            packetBuilder.setData(dataChunk.data);
-        }
-
-        boolean nonEmptyAck = false;
-        synchronized (s.pendingAcks) {
-            Iterator<Session.AckBundle> acks = s.pendingAcks.iterator();
-            for (int aI = 0; aI < 32 && acks.hasNext(); aI++) {
-                final Session.AckBundle ack = acks.next();
-                if (ack.worker != chosenWorker) {
-                    aI--;
-                } else {
-                    packetBuilder.addAckStartSeq(ack.startSeq);
-                    packetBuilder.addAckSeqCount(ack.count);
-                    nonEmptyAck = true;
-                    acks.remove();
-                }
+            final int confirmedMtu = s.mtuProber.getConfirmed();
+            if (resend != null && dataChunk.data.size() > confirmedMtu && s.remoteOptions.supports(SessionOptions.FEATURE_FRAGMENTS)) {
+                // Its size may be what got it lost, resend it in pieces of a size known to get through
+                pieces = ChunkFragments.split(dataChunk.data, confirmedMtu);
+                packetBuilder.setData(pieces.get(0)).setMtu(dataChunk.data.size()).setWindowSize(0);
+            } else {
+                packetBuilder.setData(dataChunk.data);
             }
         }
 
+        final boolean nonEmptyAck = s.pendingAcks.drainTo(packetBuilder, AckTracker.MAX_RANGES_PER_PACKET);
+
         if (nonEmptyAck || dataChunk != null) {
+            ArrayList<ClientMessageWorker> copiesBy = null;
             if (dataChunk != null) {
-                chosenWorker.sendWinsizeTrackedPacket(chosenRemote);
+                chosenWorker.sendWinsizeTrackedPacket(s.winSizeKey);
+                if (!s.redundantPaths.isEmpty()) {
+                    copiesBy = new ArrayList<>(s.redundantPaths.size());
+                    for (PathScheduler.Path p : s.redundantPaths) {
+                        final ClientMessageWorker cm = ct.multiclients.get(p.index).getAssociatedCM();
+                        cm.sendWinsizeTrackedPacket(s.winSizeKey);
+                        copiesBy.add(cm);
+                    }
+                }
                 synchronized (s.sentQ) {
-                    s.sentQ.put(dataChunk, new Session.SentLog(System.currentTimeMillis(), chosenWorker));
+                    final Session.SentLog sent = new Session.SentLog(s, dataChunk, System.currentTimeMillis(), chosenWorker, copiesBy);
+                    if (pieces != null) sent.sentSize = pieces.get(0).size();
+                    trackSent(s, sent);
                     if (s.latestSentSeqId + 1 == dataChunk.sequenceId) {
                         s.sentBytesIntegral.putIfAbsent(dataChunk.sequenceId, s.sentBytesIntegral.get(s.latestSentSeqId) + dataChunk.data.size());
                         s.latestSentSeqId = dataChunk.sequenceId;
                     }
                 }
             }
-            chosenWorker.sendMessageAsync(Collections.singletonList(chosenRemote), s.sessionId, MessagesP.PayloadType.SESSION, packetBuilder.build().toByteString());
+            final List<ByteString> packets = new ArrayList<>(pieces == null ? 1 : pieces.size());
+            packets.add(packetBuilder.build().toByteString());
+            if (pieces != null) {
+                int offset = pieces.get(0).size();
+                for (int i = 1; i < pieces.size(); i++) {
+                    packets.add(MessagesP.SessionData.newBuilder()
+                            .setSequenceId(dataChunk.sequenceId)
+                            .setData(pieces.get(i))
+                            .setMtu(dataChunk.data.size())
+                            .setWindowSize(offset)
+                            .setBytesRead(bytesRead)
+                            .setHandshake(false)
+                            .setClose(false)
+                            .build().toByteString());
+                    offset += pieces.get(i).size();
+                }
+            }
+            for (ByteString packet : packets) {
+                chosenWorker.sendMessageAsync(Collections.singletonList(chosenRemote), s.sessionId, MessagesP.PayloadType.SESSION, packet);
+                if (copiesBy != null) {
+                    for (int i = 0; i < copiesBy.size(); i++) {
+                        String copyRemote = s.prefixes.get(s.redundantPaths.get(i).index) + "." + s.remoteIdentifier;
+                        if (copyRemote.startsWith(".")) copyRemote = copyRemote.substring(1);
+                        copiesBy.get(i).sendMessageAsync(Collections.singletonList(copyRemote), s.sessionId, MessagesP.PayloadType.SESSION, packet);
+                    }
+                }
+            }
+            if (dataChunk != null && resend == null && s.isFecEnabled()) {
+                List<ByteString> parities = s.fecEncoder.onChunkSent(dataChunk, chosenPath, s.fecGroupSize, s.fecParityCount);
+                if (parities == null && s.sendQ.isEmpty()) parities = s.fecEncoder.flush();
+                if (parities != null) {
+                    // Losing the path most of the group went over would lose the parities as well, avoid it
+                    final int groupPath = s.fecEncoder.getLastGroupMainPath();
+                    s.pathCandidates.clear();
+                    for (PathScheduler.Path p : s.availablePaths) {
+                        if (p.index != groupPath) s.pathCandidates.add(p);
+                    }
+                    for (ByteString parity : parities) {
+                        final MessagesP.SessionData parityPacket = MessagesP.SessionData.newBuilder()
+                                .setSequenceId(0)
+                                .setData(parity)
+                                .setBytesRead(bytesRead)
+                                .setHandshake(false)
+                                .setClose(false)
+                                .build();
+                        int parityPath = chosenPath;
+                        if (!s.pathCandidates.isEmpty()) parityPath = s.pathCandidates.get(pathScheduler.choose(s.pathCandidates)).index;
+
+                        String parityRemote = s.prefixes.get(parityPath) + "." + s.remoteIdentifier;
+                        if (parityRemote.startsWith(".")) parityRemote = parityRemote.substring(1);
+                        ct.multiclients.get(parityPath).getAssociatedCM().sendMessageAsync(Collections.singletonList(parityRemote), s.sessionId, MessagesP.PayloadType.SESSION, parityPacket.toByteString());
+                    }
+                }
+            }
             s.lastSentBytesRead = bytesRead;
             s.lastSentBytesReadTime = System.currentTimeMillis();
             return !s.resendQ.isEmpty() || (!s.sendQ.isEmpty() && s.sentBytesIntegral.get(s.latestSentSeqId) - s.remoteBytesRead.get() + s.sendQ.peek().data.size() <= s.winSize);
@@ -399,23 +618,95 @@ public class SessionHandler extends Thread {
     }
 
     void waitForFlush(Session s) throws InterruptedException {
-        // TODO block properly, using wait and notify
-        boolean workerAvailable = false;
+        s.waitForWindow();
+    }
+
+    private void untrackWinSizes(Session s) {
         for (int i = 0; i < s.ownMulticlients; i++) {
-            workerAvailable |= ct.multiclients.get(i).getAssociatedCM().isWinSizeAvailable(s.remoteIdentifier);
+            ct.multiclients.get(i).getAssociatedCM().untrackWinSize(s.winSizeKey);
         }
+    }
 
-        boolean winSizeAvailable = s.sentBytesIntegral.get(s.latestSentSeqId) - s.remoteBytesRead.get() + s.sendQ.stream().mapToInt(dc -> dc.data.size()).sum() <= s.winSize;
-
-        while (!winSizeAvailable || !workerAvailable) {
-            Thread.sleep(300);
+    /**
+     * Called when the connection of a multiclient was re-established. Chunks sent over it recently were likely lost,
+     * so they are resent right away and remotes are asked to resume instead of waiting for timeouts
+     */
+    public void onTunnelReconnected(ClientMessageWorker cm) {
+        for (Session s : activeSessions.values()) {
+            if (!s.isEstablished || s.isClosed) continue;
+            for (int i = 0; i < s.ownMulticlients && i < s.prefixes.size(); i++) {
+                if (ct.multiclients.get(i).getAssociatedCM() != cm) continue;
+
+                s.requeueSentBy(cm);
+                if (s.remoteOptions.supports(SessionOptions.FEATURE_RESUME)) {
+                    sendResumeHandshake(s, i, SessionOptions.RESUME_REQUEST);
+                }
+                s.lastReceivedPacket = System.currentTimeMillis(); // Give the remote time to answer
+            }
+        }
+        wakeUp();
+    }
 
-            workerAvailable = false;
-            for (int i = 0; i < s.ownMulticlients; i++) {
-                workerAvailable |= ct.multiclients.get(i).getAssociatedCM().isWinSizeAvailable(s.remoteIdentifier);
+    /**
+     * Remote reconnected (request) or answered our request (response). Whatever we sent to it over that path is likely lost.
+     * @param cmw worker which received the handshake, it sends to the remote path that reconnected
+     */
+    private void onResumeHandshake(Session s, ClientMessageWorker cmw, int kind, long remoteBytesRead) {
+        if (s.remoteBytesRead.getAndUpdate(br -> Math.max(remoteBytesRead, br)) < remoteBytesRead) {
+            s.signalFlushProgress();
+        }
+        if (kind != SessionOptions.RESUME_REQUEST) return;
+
+        for (int i = 0; i < s.ownMulticlients && i < s.prefixes.size(); i++) {
+            if (ct.multiclients.get(i).getAssociatedCM() == cmw) {
+                s.requeueSentBy(cmw);
+                sendResumeHandshake(s, i, SessionOptions.RESUME_RESPONSE);
+                LOG.debug("Remote resumed session");
+                return;
             }
+        }
+    }
 
-            winSizeAvailable = s.sentBytesIntegral.get(s.latestSentSeqId) - s.remoteBytesRead.get() + s.sendQ.stream().mapToInt(dc -> dc.data.size()).sum() <= s.winSize;
+    private void sendResumeHandshake(Session s, int pathIndex, int kind) {
+        final ArrayList<String> myPrefixes = new ArrayList<>(s.ownMulticlients);
+        for (int i = 0; i < s.ownMulticlients; i++) {
+            myPrefixes.add("__" + i + "__");
+        }
+        final SessionOptions options = SessionOptions.local(s);
+        options.earlyData = null;
+        options.resume = kind;
+
+        MessagesP.SessionData data = MessagesP.SessionData.newBuilder()
+                .setSequenceId(0)
+                .setHandshake(true)
+                .addAllClientIds(myPrefixes)
+                .setMtu(s.mtu)
+                .setWindowSize(s.winSize)
+                .setBytesRead(s.bytesRead.get())
+                .setData(options.encode())
+                .setClose(false)
+                .build();
+
+        String remote = s.prefixes.get(pathIndex) + "." + s.remoteIdentifier;
+        if (remote.startsWith(".")) remote = remote.substring(1);
+        ct.multiclients.get(pathIndex).getAssociatedCM().sendMessageAsync(Collections.singletonList(remote), s.sessionId, MessagesP.PayloadType.SESSION, data.toByteString());
+    }
+
+    /**
+     * Accounts the data sent with the handshake as chunk 1. If the remote does not support early data, it is resent right away
+     */
+    private void trackEarlyData(Session s) {
+        final Session.DataChunk chunk = new Session.DataChunk(1, s.earlyData);
+        synchronized (s.sentQ) {
+            s.sentBytesIntegral.put(1, (long) chunk.data.size());
+            s.latestSentSeqId = 1;
+            if (s.remoteOptions.supports(SessionOptions.FEATURE_EARLY_DATA)) {
+                final ClientMessageWorker cm = ct.multiclients.get(0).getAssociatedCM();
+                cm.sendWinsizeTrackedPacket(s.winSizeKey);
+                trackSent(s, new Session.SentLog(s, chunk, s.earlyDataSentAt, cm, null));
+            } else {
+                s.resendQ.put(1, chunk);
+            }
         }
     }
 
@@ -427,20 +718,25 @@ public class SessionHandler extends Thread {
             myPrefixes.add("__" + i + "__");
         }
 
-        MessagesP.SessionData data = MessagesP.SessionData.newBuilder()
+        final SessionOptions options = SessionOptions.local(s);
+        MessagesP.SessionData.Builder data = MessagesP.SessionData.newBuilder()
                 .setSequenceId(0)
                 .setHandshake(true)
                 .addAllClientIds(myPrefixes)
                 .setMtu(s.mtu)
                 .setWindowSize(s.winSize)
-                .setClose(false)
-                .build();
+                .setData(options.encode())
+                .setClose(false);
+
+        // Early data goes only with the first copy, the others advertise just the features
+        final ByteString packetWithEarlyData = data.build().toByteString();
+        options.earlyData = null;
+        final ByteString packet = s.earlyData == null ? packetWithEarlyData : data.setData(options.encode()).build().toByteString();
 
-        final ByteString packet = data.toByteString();
         for (int i = 0; i < s.ownMulticlients && i < s.prefixes.size(); i ++) {
             String remote = s.prefixes.get(i) + "." + s.remoteIdentifier;
             if (remote.startsWith(".")) remote = remote.substring(1);
-            ct.multiclients.get(i).getAssociatedCM().sendMessageAsync(Collections.singletonList(remote), s.sessionId, MessagesP.PayloadType.SESSION, packet);
+            ct.multiclients.get(i).getAssociatedCM().sendMessageAsync(Collections.singletonList(remote), s.sessionId, MessagesP.PayloadType.SESSION, i == 0 ? packetWithEarlyData : packet);
         }
         if (s.ownMulticlients == 1 && s.prefixes.size() > 1) {
             for (int i = 1; i < s.prefixes.size(); i ++) {
@@ -450,6 +746,7 @@ public class SessionHandler extends Thread {
             }
         }
         s.lastReceivedPacket = System.currentTimeMillis();
+        s.earlyDataSentAt = s.lastReceivedPacket;
     }
 
 
@@ -5,21 +5,29 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  *
  */
 public class SessionInputStream extends InputStream {
 
-    private ByteString buffer = ByteString.EMPTY;
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    // Ring buffer of in-order data, grows on demand up to the session window
+    private byte[] ring = new byte[0];
+    private int head = 0, size = 0;
     private final Object bufferLock = new Object();
-    private final AtomicInteger lastSequenceIdInBuffer = new AtomicInteger(0);
+    private final Object readLock = new Object();
 
     private final Session s;
-    SessionInputStream(Session s) {
+    private final SessionHandler handler;
+    SessionInputStream(Session s, SessionHandler handler) {
         this.s = s;
+        this.handler = handler;
     }
 
     @Override
@@ -27,37 +35,126 @@ public class SessionInputStream extends InputStream {
         if (length <= 0) return 0;
         if (offset < 0 || offset >= bytes.length) throw new IndexOutOfBoundsException("Offset is outside of bounds (" + offset + ")");
         length = Math.min(length, bytes.length - offset);
+        if (s.compressed) return readCompressed(bytes, offset, length, true);
 
-        synchronized (bufferLock) {
-            while (buffer.size() == 0) {
-                if (isClosedInbound) return -1;
-                try {
-                    bufferLock.wait();
-                } catch (InterruptedException e) {
-                    throw new IOException("Thread interrupted while waiting for data", e);
-                }
+        final int read;
+        synchronized (readLock) {
+            synchronized (bufferLock) {
+                if (!awaitData(true)) return -1;
+
+                read = Math.min(size, length);
+                final int first = Math.min(read, ring.length - head);
+                System.arraycopy(ring, head, bytes, offset, first);
+                System.arraycopy(ring, 0, bytes, offset + first, read - first);
+                consume(read);
             }
+        }
+        onConsumed(read);
+        return read;
+    }
 
-            int size = Math.min(buffer.size(), length);
-            buffer.copyTo(bytes, 0, offset, size);
-            buffer = buffer.substring(size);
-            s.bytesRead.addAndGet(size);
-            return size;
+    public int read(ByteBuffer dst) throws IOException {
+        return read(dst, true);
+    }
+
+    /**
+     * @return number of bytes read, 0 if there is no data available right now, -1 at the end of stream
+     */
+    int readNonBlocking(ByteBuffer dst) throws IOException {
+        return read(dst, false);
+    }
+
+    private int read(ByteBuffer dst, boolean blocking) throws IOException {
+        if (!dst.hasRemaining()) return 0;
+        if (s.compressed) {
+            final int read;
+            if (dst.hasArray()) {
+                read = readCompressed(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining(), blocking);
+                if (read > 0) dst.position(dst.position() + read);
+            } else {
+                final byte[] inflated = new byte[Math.min(dst.remaining(), 16 * 1024)];
+                read = readCompressed(inflated, 0, inflated.length, blocking);
+                if (read > 0) dst.put(inflated, 0, read);
+            }
+            return read;
+        }
+
+        final int read;
+        synchronized (readLock) {
+            synchronized (bufferLock) {
+                if (!awaitData(blocking)) return isClosedInbound ? -1 : 0;
+
+                read = Math.min(size, dst.remaining());
+                final int first = Math.min(read, ring.length - head);
+                dst.put(ring, head, first);
+                dst.put(ring, 0, read - first);
+                consume(read);
+            }
+        }
+        onConsumed(read);
+        return read;
+    }
+
+    /**
+     * Writes all data until the end of the stream straight from the internal buffer to the provided stream
+     * @return number of bytes transferred
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        long transferred = 0;
+        if (s.compressed) {
+            final byte[] inflated = new byte[16 * 1024];
+            int read;
+            while ((read = readCompressed(inflated, 0, inflated.length, true)) != -1) {
+                out.write(inflated, 0, read);
+                transferred += read;
+            }
+            return transferred;
+        }
+        synchronized (readLock) {
+            while (true) {
+                final byte[] arr;
+                final int start, length;
+                synchronized (bufferLock) {
+                    if (!awaitData(true)) return transferred;
+                    arr = ring;
+                    start = head;
+                    length = Math.min(size, ring.length - head);
+                }
+                // Only this reader frees space, so the region can't be overwritten (a grown ring holds a copy of it)
+                out.write(arr, start, length);
+                synchronized (bufferLock) {
+                    consume(length);
+                }
+                onConsumed(length);
+                transferred += length;
+            }
         }
     }
 
     @Override
     public int available() {
+        if (s.compressed) return 0; // Can't tell how much buffered data inflates to without inflating it
         synchronized (bufferLock) {
-            return buffer.size();
+            return size;
         }
     }
 
     @Override
     public int read() throws IOException {
-        final byte[] buff = new byte[1];
-        if (read(buff, 0, 1) == -1) return -1;
-        return buff[0] & 0xFF;
+        if (s.compressed) {
+            final byte[] b = new byte[1];
+            return readCompressed(b, 0, 1, true) == -1 ? -1 : b[0] & 0xFF;
+        }
+        final int b;
+        synchronized (readLock) {
+            synchronized (bufferLock) {
+                if (!awaitData(true)) return -1;
+                b = ring[head] & 0xFF;
+                consume(1);
+            }
+        }
+        onConsumed(1);
+        return b;
     }
 
     @Override
@@ -65,48 +162,125 @@ public class SessionInputStream extends InputStream {
         s.close();
     }
 
+    // Data is kept compressed in the ring and inflated on read, so that the window and bytesRead count wire bytes
+    private final Inflater inflater = new Inflater(true);
+    private int readCompressed(byte[] bytes, int offset, int length, boolean blocking) throws IOException {
+        int inflated = 0, consumed = 0;
+        synchronized (readLock) {
+            synchronized (bufferLock) {
+                try {
+                    while (true) {
+                        final int contiguous = Math.min(size, ring.length - head);
+                        inflater.setInput(ring, head, contiguous);
+                        inflated = inflater.inflate(bytes, offset, length);
+                        final int used = contiguous - inflater.getRemaining();
+                        consume(used);
+                        consumed += used;
+
+                        if (inflated > 0) break;
+                        if (size == 0) {
+                            if (!awaitData(blocking)) break;
+                        } else if (used == 0) {
+                            throw new IOException("Received compressed data is corrupted");
+                        }
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Received compressed data is corrupted", e);
+                }
+            }
+        }
+        if (consumed > 0) onConsumed(consumed);
+        if (inflated > 0) return inflated;
+        return isClosedInbound ? -1 : 0;
+    }
+
+    /**
+     * Must be called with bufferLock held
+     * @return false if the stream ended, or there is no data and blocking is not allowed
+     */
+    private boolean awaitData(boolean blocking) throws IOException {
+        while (size == 0) {
+            if (isClosedInbound || !blocking) return false;
+            try {
+                bufferLock.wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Thread interrupted while waiting for data", e);
+            }
+        }
+        return true;
+    }
+
+    private void consume(int length) {
+        size -= length;
+        head = size == 0 ? 0 : (head + length) % ring.length;
+    }
+
+    private void onConsumed(int length) {
+        final long bytesRead = s.bytesRead.addAndGet(length);
+        if (bytesRead - s.lastSentBytesRead >= s.winSize / 4) {
+            handler.wakeUp(); // Remote may be waiting for window space, let it know
+        }
+    }
+
+    private void append(ByteString data) {
+        final int length = data.size();
+        if (length == 0) return;
+        if (size + length > ring.length) {
+            final int capacity = Math.max(size + length, Math.min(Math.max(ring.length * 2, INITIAL_CAPACITY), s.winSize));
+            final byte[] grown = new byte[capacity];
+            final int first = Math.min(size, ring.length - head);
+            System.arraycopy(ring, head, grown, 0, first);
+            System.arraycopy(ring, 0, grown, first, size - first);
+            ring = grown;
+            head = 0;
+        }
+
+        final int tail = (head + size) % ring.length;
+        final int first = Math.min(length, ring.length - tail);
+        data.copyTo(ring, 0, tail, first);
+        data.copyTo(ring, first, 0, length - first);
+        size += length;
+    }
+
     boolean isClosedInbound = false;
     void sessionClosed() {
         synchronized (bufferLock) {
             isClosedInbound = true;
             bufferLock.notifyAll();
         }
+        s.notifyChannel();
     }
 
-    private final ConcurrentHashMap<Integer, ByteString> receivedChunks = new ConcurrentHashMap<>();
-    private final AtomicInteger acc = new AtomicInteger(0);
-    boolean onReceivedDataChunk(int sequenceId, ByteString data) {
-        acc.set(0);
-        receivedChunks.forEach((sId, d) -> acc.addAndGet(d.size()));
+    /**
+     * @return true if a read would not block, either because there is data or the stream ended
+     */
+    boolean isReadable() {
         synchronized (bufferLock) {
-            if (acc.get() + buffer.size() + data.size() > s.winSize) return false;
+            return size > 0 || isClosedInbound;
         }
+    }
 
-        if (sequenceId - 1 == lastSequenceIdInBuffer.get()) {
-            synchronized (bufferLock) {
-                if (sequenceId - 1 == lastSequenceIdInBuffer.get()) {
-                    int sid = sequenceId;
-                    ByteString nextData = data;
+    private ChunkReorderBuffer reorder = null;
+    boolean onReceivedDataChunk(int sequenceId, ByteString data) {
+        boolean delivered = false;
+        synchronized (bufferLock) {
+            if (reorder == null) reorder = new ChunkReorderBuffer(1, s.getMaxChunksInWindow());
 
-                    while (nextData != null) {
-                        buffer = buffer.concat(nextData);
-                        lastSequenceIdInBuffer.set(sid);
-                        sid ++;
+            if (reorder.contains(sequenceId)) return true; // Duplicate, ack it again
+            if (reorder.getBytes() + size + data.size() > s.winSize) return false;
+            if (sequenceId - reorder.getNextSequenceId() >= s.getMaxChunksInWindow()) return false; // Can't be within the window
 
-                        nextData = receivedChunks.remove(sid);
-                    }
+            reorder.put(sequenceId, data);
+            if (reorder.getNextSequenceId() == sequenceId) {
+                ByteString nextData;
+                while ((nextData = reorder.pollNext()) != null) {
+                    append(nextData);
                 }
-
                 bufferLock.notifyAll();
+                delivered = true;
             }
         }
-
-        final int lastSid = lastSequenceIdInBuffer.get();
-        if (sequenceId > lastSid) {
-            receivedChunks.put(sequenceId, data);
-        }
-        receivedChunks.keySet().removeIf(sid -> sid <= lastSid);
-
+        if (delivered) s.notifyChannel();
         return true;
     }
 }
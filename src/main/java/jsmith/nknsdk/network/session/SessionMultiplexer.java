@@ -0,0 +1,226 @@
+package jsmith.nknsdk.network.session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Carries many independent streams over a single established session, opening a stream costs no round trip.
+ * Streams share the congestion control and paths of the session and have their own flow control window.
+ * Both sides of the session must use a multiplexer, frames are read only after {@link #start()}.
+ * Streams opened by the dialer have odd ids, streams opened by the acceptor even ids, ids of each side only increase.
+ * A remote that writes past the stream window gets the stream reset, a remote that opens a stream with a wrong id
+ * breaks the protocol and the multiplexer stops.
+ *
+ * Frame: type (1 B), stream id (4 B), length (4 B), followed by length bytes of data for DATA frames.
+ * WINDOW_UPDATE frames carry the window increment in the length field, CLOSE frames carry 1 if the stream
+ * was closed in both directions, so the remote stops writing, 0 if only the outbound direction was closed.
+ */
+public class SessionMultiplexer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionMultiplexer.class);
+
+    public static final int STREAM_WINDOW = 256 * 1024;
+    public static final int MAX_FRAME_DATA = 16 * 1024;
+
+    static final byte FRAME_OPEN = 0;
+    static final byte FRAME_DATA = 1;
+    static final byte FRAME_CLOSE = 2;
+    static final byte FRAME_WINDOW_UPDATE = 3;
+    private static final int HEADER_LENGTH = 9;
+
+    private final Session session;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Object writeLock = new Object();
+    private final String name;
+
+    private final ConcurrentHashMap<Integer, SessionStream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId;
+    private final int remoteIdParity;
+    private int lastRemoteStreamId = 0; // Only accessed by the reader
+    private volatile Consumer<SessionStream> onStream = null;
+    private volatile boolean closed = false;
+    private Thread reader = null;
+
+    public SessionMultiplexer(Session session) {
+        this(session, session.getInputStream(), session.getOutputStream(), session.isDialer(), "SessionMultiplexer-" + session.remoteIdentifier);
+    }
+
+    /**
+     * @param session may be null if there is no session behind the streams
+     */
+    SessionMultiplexer(Session session, InputStream in, OutputStream out, boolean dialer, String name) {
+        this.session = session;
+        this.in = in;
+        this.out = out;
+        this.name = name;
+        this.nextStreamId = new AtomicInteger(dialer ? 1 : 2); // Odd ids are opened by dialer, even by acceptor
+        this.remoteIdParity = dialer ? 0 : 1;
+    }
+
+    /**
+     * Starts reading frames of the session, register {@link #onStream(Consumer)} before calling this
+     */
+    public synchronized void start() {
+        if (reader != null) return;
+        reader = new Thread(this::readFrames, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public SessionStream openStream() throws IOException {
+        if (closed) throw new IOException("Multiplexer is closed");
+
+        final SessionStream stream = new SessionStream(this, nextStreamId.getAndAdd(2));
+        streams.put(stream.id, stream);
+        writeFrame(FRAME_OPEN, stream.id, null, 0, 0, true);
+        return stream;
+    }
+
+    /**
+     * @param onStream called for every stream opened by the remote. Runs on the multiplexer reader thread, must not block
+     */
+    public void onStream(Consumer<SessionStream> onStream) {
+        this.onStream = onStream;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return true if the multiplexer was closed or stopped reading because the session ended or the remote broke the protocol
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        closed = true;
+        streams.values().forEach(SessionStream::onRemoteClosed);
+        streams.clear();
+        if (session != null) session.close();
+    }
+
+    /**
+     * @param length length of data, or the value of the length field for frames without data
+     */
+    void writeFrame(byte type, int streamId, byte[] data, int offset, int length, boolean flush) throws IOException {
+        final byte[] header = new byte[] {
+                type,
+                (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId,
+                (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length
+        };
+        synchronized (writeLock) {
+            out.write(header);
+            if (data != null && length > 0) out.write(data, offset, length);
+            if (flush) out.flush();
+        }
+    }
+
+    void flush() throws IOException {
+        synchronized (writeLock) {
+            out.flush();
+        }
+    }
+
+    void onStreamClosed(SessionStream stream) {
+        streams.remove(stream.id, stream);
+    }
+
+    /**
+     * Resets the stream from another thread, the reader must not write
+     */
+    private void resetAsync(int streamId) {
+        final Thread resetter = new Thread(() -> {
+            try {
+                writeFrame(FRAME_CLOSE, streamId, null, 0, 1, true);
+            } catch (IOException e) {
+                LOG.debug("Failed to reset stream {}", streamId, e);
+            }
+        }, name + "-reset");
+        resetter.setDaemon(true);
+        resetter.start();
+    }
+
+    // The reader never writes, so it always keeps draining the session and the session window can't deadlock
+    private void readFrames() {
+        final byte[] header = new byte[HEADER_LENGTH];
+        try {
+            while (!closed) {
+                readFully(header, HEADER_LENGTH);
+                final byte type = header[0];
+                final int streamId = readInt(header, 1);
+                final int length = readInt(header, 5);
+
+                SessionStream stream = streams.get(streamId);
+                switch (type) {
+                    case FRAME_OPEN:
+                        if ((streamId & 1) != remoteIdParity || streamId <= lastRemoteStreamId) {
+                            throw new IOException("Remote opened stream with invalid id " + streamId);
+                        }
+                        lastRemoteStreamId = streamId;
+                        if (stream == null) {
+                            stream = new SessionStream(this, streamId);
+                            streams.put(streamId, stream);
+                            final Consumer<SessionStream> cb = onStream;
+                            if (cb != null) {
+                                cb.accept(stream);
+                            } else {
+                                LOG.warn("Stream opened by remote, but there is no stream listener");
+                            }
+                        }
+                        break;
+                    case FRAME_DATA:
+                        if (length < 0 || length > MAX_FRAME_DATA) throw new IOException("Invalid multiplexer frame length");
+                        final byte[] data = new byte[length];
+                        readFully(data, length);
+                        if (stream != null && !stream.onData(data)) {
+                            LOG.warn("Remote exceeded the stream window, resetting stream {}", streamId);
+                            stream.abort();
+                            resetAsync(streamId);
+                        }
+                        break;
+                    case FRAME_CLOSE:
+                        if (stream != null) {
+                            if (length == 1) stream.onRemoteReset();
+                            stream.onRemoteClosed();
+                        }
+                        break;
+                    case FRAME_WINDOW_UPDATE:
+                        if (stream != null) stream.onWindowUpdate(length);
+                        break;
+                    default:
+                        throw new IOException("Unknown multiplexer frame type " + type);
+                }
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException e) {
+            LOG.warn("Multiplexer stopped reading", e);
+        }
+        closed = true;
+        streams.values().forEach(SessionStream::onRemoteClosed);
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int r = in.read(buffer, read, length - read);
+            if (r == -1) throw new EOFException();
+            read += r;
+        }
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+
+}
@@ -0,0 +1,91 @@
+package jsmith.nknsdk.network.session;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+
+/**
+ * Protocol extensions advertised in the otherwise unused data field of handshake packets, encoded in protobuf wire format.
+ * Peers that don't know about them ignore the field, unknown fields are skipped, so an extension is only used once both sides advertise it.
+ */
+class SessionOptions {
+
+    static final int FEATURE_FEC = 1;
+    static final int FEATURE_DEFLATE = 2;
+    static final int FEATURE_EARLY_DATA = 4;
+    static final int FEATURE_RESUME = 8;
+    static final int FEATURE_FRAGMENTS = 16;
+
+    static final int RESUME_REQUEST = 1;
+    static final int RESUME_RESPONSE = 2;
+
+    private static final int FIELD_FEATURES = 1;
+    private static final int FIELD_EARLY_DATA = 2;
+    private static final int FIELD_RESUME = 3;
+
+    int features = 0;
+    ByteString earlyData = null; // First data chunk of the dialer, sequence id 1
+    int resume = 0; // Non zero if the handshake is for an already established session, see RESUME_*
+
+    boolean supports(int feature) {
+        return (features & feature) != 0;
+    }
+
+    ByteString encode() {
+        try {
+            final ByteString.Output out = ByteString.newOutput();
+            final CodedOutputStream cos = CodedOutputStream.newInstance(out);
+            cos.writeUInt32(FIELD_FEATURES, features);
+            if (earlyData != null) cos.writeBytes(FIELD_EARLY_DATA, earlyData);
+            if (resume != 0) cos.writeUInt32(FIELD_RESUME, resume);
+            cos.flush();
+            return out.toByteString();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode session options", e);
+        }
+    }
+
+    /**
+     * @return decoded options, no extensions if the data is empty or malformed
+     */
+    static SessionOptions decode(ByteString data) {
+        final SessionOptions options = new SessionOptions();
+        try {
+            final CodedInputStream in = data.newCodedInput();
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case FIELD_FEATURES:
+                        options.features = in.readUInt32();
+                        break;
+                    case FIELD_EARLY_DATA:
+                        options.earlyData = in.readBytes();
+                        break;
+                    case FIELD_RESUME:
+                        options.resume = in.readUInt32();
+                        break;
+                    default:
+                        if (!in.skipField(tag)) return options;
+                }
+            }
+        } catch (IOException e) {
+            return new SessionOptions();
+        }
+        return options;
+    }
+
+    /**
+     * @return options this implementation advertises for the session
+     */
+    static SessionOptions local(Session s) {
+        final SessionOptions options = new SessionOptions();
+        options.features = FEATURE_FEC | FEATURE_EARLY_DATA | FEATURE_RESUME | FEATURE_FRAGMENTS;
+        if (s.compressionPreferred) options.features |= FEATURE_DEFLATE;
+        options.earlyData = s.earlyData;
+        return options;
+    }
+
+}
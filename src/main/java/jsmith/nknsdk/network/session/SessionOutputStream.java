@@ -1,20 +1,32 @@
 package jsmith.nknsdk.network.session;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *
  */
 public class SessionOutputStream extends OutputStream {
 
+    static final int FLUSH_INTERVAL_MS = 70;
 
+    // Data is copied once, straight into segments sized by the MTU probing. Segments are never reused since the chunks wrapping them
+    // must stay intact until acknowledged
     private final Object bufferLock = new Object();
-    private ByteString buffer = ByteString.EMPTY;
+    private final ArrayDeque<ByteString> fullSegments = new ArrayDeque<>();
+    private byte[] segment = null;
+    private int segmentLength = 0;
+    private volatile int buffered = 0;
 
     private boolean autoFlushReq, flushReq;
 
@@ -26,6 +38,13 @@ public class SessionOutputStream extends OutputStream {
         this.handler = handler;
     }
 
+    /**
+     * Reserves sequence id 1 for data sent along with the handshake
+     */
+    void reserveEarlyDataSequenceId() {
+        seqId.set(1);
+    }
+
     @Override
     public void write(int b) throws IOException {
         write(new byte[]{(byte)b}, 0, 1);
@@ -33,57 +52,278 @@ public class SessionOutputStream extends OutputStream {
 
     @Override
     public void write(@NotNull byte[] bytes, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) throw new IndexOutOfBoundsException();
         if (s.isClosing) throw new IOException("Session is closing or closed, cannot send new data");
+        if (s.compressed) {
+            writeCompressed(bytes, offset, length, true);
+            return;
+        }
 
-        synchronized (bufferLock) {
-            buffer = buffer.concat(ByteString.copyFrom(bytes, offset, length));
-            if (buffer.size() >= s.mtu) {
-                autoFlushReq = true;
+        while (length > 0) {
+            final boolean wasEmpty;
+            final int written;
+            synchronized (bufferLock) {
+                wasEmpty = buffered == 0;
+                written = Math.min(length, ensureSegment());
+                System.arraycopy(bytes, offset, segment, segmentLength, written);
+                onSegmentWritten(written);
+            }
+            offset += written;
+            length -= written;
+            afterWrite(wasEmpty, true);
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the buffer
+     */
+    public void write(ByteBuffer src) throws IOException {
+        write(src, true);
+    }
+
+    /**
+     * Accepts only as much data as fits in the window right now and sends it without waiting
+     * @return number of bytes written, possibly 0
+     */
+    int writeNonBlocking(ByteBuffer src) throws IOException {
+        final int length = Math.min(src.remaining(), getFreeWindow());
+        if (length <= 0) return 0;
+
+        final ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + length);
+        write(slice, false);
+        src.position(src.position() + length);
+
+        flushReq = true;
+        doFlush(false);
+        return length;
+    }
+
+    private void write(ByteBuffer src, boolean blocking) throws IOException {
+        if (s.isClosing) throw new IOException("Session is closing or closed, cannot send new data");
+        if (s.compressed) {
+            if (src.hasArray()) {
+                writeCompressed(src.array(), src.arrayOffset() + src.position(), src.remaining(), blocking);
+                src.position(src.limit());
+            } else {
+                final byte[] input = new byte[Math.min(src.remaining(), COMPRESSION_INPUT_SLICE)];
+                while (src.hasRemaining()) {
+                    final int length = Math.min(src.remaining(), input.length);
+                    src.get(input, 0, length);
+                    writeCompressed(input, 0, length, blocking);
+                }
+            }
+            return;
+        }
+
+        while (src.hasRemaining()) {
+            final boolean wasEmpty;
+            synchronized (bufferLock) {
+                wasEmpty = buffered == 0;
+                final int written = Math.min(src.remaining(), ensureSegment());
+                src.get(segment, segmentLength, written);
+                onSegmentWritten(written);
+            }
+            afterWrite(wasEmpty, blocking);
+        }
+    }
+
+    /**
+     * @return bytes that can still be written before the remote window is full
+     */
+    int getFreeWindow() {
+        return s.winSize - getUnconfirmedSentBytesCount();
+    }
+
+    /**
+     * Reads the channel until its end (or until no data is available for non-blocking channels) and sends all the read data.
+     * Data read from the channel is not copied again unless it has to be appended to a partially filled segment
+     * @return number of bytes transferred
+     */
+    public long transferFrom(ReadableByteChannel channel) throws IOException {
+        long transferred = 0;
+        byte[] readSegment = new byte[s.mtuProber.getMtu()];
+        while (true) {
+            if (s.isClosing) throw new IOException("Session is closing or closed, cannot send new data");
+
+            final int read = channel.read(ByteBuffer.wrap(readSegment));
+            if (read == -1) return transferred;
+            if (read == 0) return transferred; // Non-blocking channel with no data available
+            transferred += read;
+            if (s.compressed) {
+                writeCompressed(readSegment, 0, read, true); // Deflater consumes all of it, the array can be reused
+                continue;
             }
+
+            final boolean wasEmpty;
+            boolean adopted = false;
+            synchronized (bufferLock) {
+                wasEmpty = buffered == 0;
+                if (segmentLength == 0 && readSegment.length == s.mtuProber.getMtu()) {
+                    segment = readSegment;
+                    adopted = true;
+                    onSegmentWritten(read);
+                } else {
+                    int offset = 0;
+                    while (offset < read) {
+                        final int written = Math.min(read - offset, ensureSegment());
+                        System.arraycopy(readSegment, offset, segment, segmentLength, written);
+                        onSegmentWritten(written);
+                        offset += written;
+                    }
+                }
+            }
+            if (adopted || readSegment.length != s.mtuProber.getMtu()) readSegment = new byte[s.mtuProber.getMtu()];
+            afterWrite(wasEmpty, true);
+        }
+    }
+
+    /**
+     * Must be called with bufferLock held
+     * @return free space in the current segment
+     */
+    private int ensureSegment() {
+        if (segment == null) {
+            segment = new byte[s.mtuProber.getMtu()];
+            segmentLength = 0;
         }
-        doFlush();
+        return segment.length - segmentLength;
+    }
+
+    /**
+     * Must be called with bufferLock held
+     */
+    private void onSegmentWritten(int length) {
+        segmentLength += length;
+        buffered += length;
+        if (segmentLength == segment.length) {
+            fullSegments.add(UnsafeByteOperations.unsafeWrap(segment));
+            segment = null;
+            segmentLength = 0;
+            autoFlushReq = true;
+        }
+    }
+
+    // Streaming compression, the dictionary is kept across writes and flushes so small writes compress well too
+    private static final int COMPRESSION_INPUT_SLICE = 64 * 1024;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private volatile boolean compressedPending = false;
+
+    private void writeCompressed(byte[] bytes, int offset, int length, boolean blocking) throws IOException {
+        while (length > 0) {
+            final int slice = Math.min(length, COMPRESSION_INPUT_SLICE);
+            final boolean wasEmpty;
+            synchronized (bufferLock) {
+                wasEmpty = buffered == 0 && !compressedPending;
+                deflater.setInput(bytes, offset, slice);
+                compressedPending = true;
+                deflate(Deflater.NO_FLUSH);
+            }
+            offset += slice;
+            length -= slice;
+            afterWrite(wasEmpty, blocking);
+        }
+    }
+
+    /**
+     * Must be called with bufferLock held, writes compressed output into segments
+     */
+    private void deflate(int flushMode) {
+        while (true) {
+            final int space = ensureSegment();
+            final int written = deflater.deflate(segment, segmentLength, space, flushMode);
+            onSegmentWritten(written);
+            if (written < space && (flushMode != Deflater.NO_FLUSH || deflater.needsInput())) return;
+        }
+    }
+
+    private void afterWrite(boolean wasEmpty, boolean blocking) throws IOException {
+        if (wasEmpty) handler.wakeUp(); // Schedule timed flush
+        if (autoFlushReq) doFlush(blocking);
     }
 
     @Override
     public void flush() throws IOException {
         flushReq = true;
-        doFlush();
+        doFlush(true);
     }
 
     long lastFlush = 0;
-    void timedFlush() {
-        if (System.currentTimeMillis() - lastFlush > 70) {
+
+    /**
+     * Called by the session handler, must not block
+     * @return time at which this should be called again, Long.MAX_VALUE if there is nothing buffered
+     */
+    long timedFlush(long now) {
+        if (buffered == 0 && !compressedPending) return Long.MAX_VALUE;
+        if (now - lastFlush >= FLUSH_INTERVAL_MS) {
+            flushReq = true;
             try {
-                flush();
-                lastFlush = System.currentTimeMillis();
+                doFlush(false);
             } catch (IOException ignored) {}
+            lastFlush = now;
         }
+        return lastFlush + FLUSH_INTERVAL_MS;
     }
 
-    private final Object flushLock = new Object();
-    private void doFlush() throws IOException {
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private void doFlush(boolean blocking) throws IOException {
         try {
-            synchronized (flushLock) {
+            boolean enqueued = false;
+            if (blocking) {
+                flushLock.lock();
+            } else if (!flushLock.tryLock()) {
+                return; // Some writer is flushing right now
+            }
+            try {
                 if (!autoFlushReq && !flushReq) return;
                 synchronized (bufferLock) {
-                    while (buffer.size() >= s.mtu) {
-                        s.sendQ.put(new Session.DataChunk(seqId.incrementAndGet(), buffer.substring(0, s.mtu)));
-                        buffer = buffer.substring(s.mtu);
+                    if (flushReq && compressedPending) {
+                        deflate(Deflater.SYNC_FLUSH);
+                        compressedPending = false;
+                    }
+                    while (!fullSegments.isEmpty()) {
+                        if (!enqueue(fullSegments.peek(), blocking)) return;
+                        buffered -= fullSegments.poll().size();
+                        enqueued = true;
                     }
-                    if (flushReq && !buffer.isEmpty()) {
-                        s.sendQ.put(new Session.DataChunk(seqId.incrementAndGet(), buffer));
-                        buffer = ByteString.EMPTY;
+                    if (flushReq && segmentLength > 0) {
+                        // The segment is handed over to the chunk, next write starts a new one
+                        if (!enqueue(UnsafeByteOperations.unsafeWrap(segment, 0, segmentLength), blocking)) return;
+                        buffered -= segmentLength;
+                        segment = null;
+                        segmentLength = 0;
+                        enqueued = true;
                     }
                 }
                 flushReq = false;
                 autoFlushReq = false;
+            } finally {
+                flushLock.unlock();
             }
-            handler.waitForFlush(s);
+            if (enqueued) handler.wakeUp();
+            if (blocking) handler.waitForFlush(s);
         } catch (InterruptedException ie) {
             throw new IOException(ie);
         }
     }
 
+    /**
+     * Must be called with flushLock held, so that chunks are queued in sequence order
+     * @return false if the chunk wasn't queued because the queue is full and blocking wasn't allowed
+     */
+    private boolean enqueue(ByteString data, boolean blocking) throws InterruptedException {
+        final Session.DataChunk chunk = new Session.DataChunk(seqId.get() + 1, data);
+        if (blocking) {
+            s.sendQ.put(chunk);
+        } else if (!s.sendQ.offer(chunk)) {
+            return false;
+        }
+        s.sendQBytes.addAndGet(data.size());
+        seqId.incrementAndGet();
+        return true;
+    }
+
     @Override
     public void close() {
         s.close();
@@ -91,7 +331,7 @@ public class SessionOutputStream extends OutputStream {
 
     public int getUnconfirmedSentBytesCount() {
         synchronized (bufferLock) {
-            return (int)(s.sentBytesIntegral.get(s.latestSentSeqId) - s.sentBytesIntegral.get(s.latestConfirmedSeqId) + s.sendQ.stream().mapToInt(dc -> dc.data.size()).sum() + buffer.size());
+            return (int)(s.sentBytesIntegral.get(s.latestSentSeqId) - s.sentBytesIntegral.get(s.latestConfirmedSeqId) + s.sendQBytes.get() + buffered);
         }
     }
 
@@ -0,0 +1,173 @@
+package jsmith.nknsdk.network.session;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Waits for readiness of many {@link SessionChannel}s at once, similar to {@link java.nio.channels.Selector}.
+ * Readiness is level triggered: a key is selected again as long as its channel stays ready.
+ * Only channels which signalled a change since are checked, so the cost of select does not grow with idle sessions.
+ */
+public class SessionSelector implements Closeable {
+
+    public static final int OP_READ = 1;
+    public static final int OP_WRITE = 4;
+
+    private final Object lock = new Object();
+    private final LinkedHashSet<Key> signalled = new LinkedHashSet<>();
+    private final Set<Key> selectedKeys = new LinkedHashSet<>();
+    private boolean wokenUp = false;
+    private boolean closed = false;
+
+    public Key register(SessionChannel channel, int interestOps, Object attachment) {
+        synchronized (lock) {
+            if (closed) throw new IllegalStateException("Selector is closed");
+        }
+        final Key key = new Key(this, channel, interestOps, attachment);
+        channel.keys.add(key);
+        key.signal();
+        return key;
+    }
+
+    /**
+     * @param timeoutMs maximum time to wait, 0 to wait until a key is selected or {@link #wakeup()} is called
+     * @return number of keys added to the selected set
+     */
+    public int select(long timeoutMs) throws InterruptedException {
+        final long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+        synchronized (lock) {
+            while (true) {
+                final int selected = collect();
+                if (selected > 0 || wokenUp || closed) {
+                    wokenUp = false;
+                    return selected;
+                }
+
+                final long now = System.currentTimeMillis();
+                if (now >= deadline) return 0;
+                if (deadline == Long.MAX_VALUE) {
+                    lock.wait();
+                } else {
+                    lock.wait(deadline - now);
+                }
+            }
+        }
+    }
+
+    public int select() throws InterruptedException {
+        return select(0);
+    }
+
+    public int selectNow() {
+        synchronized (lock) {
+            return collect();
+        }
+    }
+
+    /**
+     * Must be called with lock held
+     */
+    private int collect() {
+        int selected = 0;
+        final Iterator<Key> it = signalled.iterator();
+        while (it.hasNext()) {
+            final Key key = it.next();
+            final int ready = key.valid ? key.channel.readyOps() & key.interestOps : 0;
+            if (ready == 0) {
+                it.remove(); // Signalled again once its readiness changes
+                continue;
+            }
+            key.readyOps = ready;
+            if (selectedKeys.add(key)) selected ++;
+        }
+        return selected;
+    }
+
+    /**
+     * @return keys selected by the last select calls, remove them once handled
+     */
+    public Set<Key> selectedKeys() {
+        return selectedKeys;
+    }
+
+    public void wakeup() {
+        synchronized (lock) {
+            wokenUp = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            for (Key key : signalled) key.valid = false;
+            signalled.clear();
+            selectedKeys.clear();
+            lock.notifyAll();
+        }
+    }
+
+    private void signal(Key key) {
+        synchronized (lock) {
+            if (closed || !key.valid) return;
+            if (signalled.add(key)) lock.notifyAll();
+        }
+    }
+
+    public static class Key {
+        private final SessionSelector selector;
+        private final SessionChannel channel;
+        private final Object attachment;
+        private volatile int interestOps;
+        private volatile int readyOps = 0;
+        private volatile boolean valid = true;
+
+        private Key(SessionSelector selector, SessionChannel channel, int interestOps, Object attachment) {
+            this.selector = selector;
+            this.channel = channel;
+            this.interestOps = interestOps;
+            this.attachment = attachment;
+        }
+
+        void signal() {
+            selector.signal(this);
+        }
+
+        public SessionChannel channel() {
+            return channel;
+        }
+        public Object attachment() {
+            return attachment;
+        }
+
+        public int interestOps() {
+            return interestOps;
+        }
+        public void interestOps(int interestOps) {
+            this.interestOps = interestOps;
+            signal();
+        }
+
+        public int readyOps() {
+            return readyOps;
+        }
+        public boolean isReadable() {
+            return (readyOps & OP_READ) != 0;
+        }
+        public boolean isWritable() {
+            return (readyOps & OP_WRITE) != 0;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+        public void cancel() {
+            valid = false;
+            channel.keys.remove(this);
+        }
+    }
+
+}
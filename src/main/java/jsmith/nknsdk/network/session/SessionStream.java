@@ -0,0 +1,240 @@
+package jsmith.nknsdk.network.session;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Single logical stream of a {@link SessionMultiplexer}
+ */
+public class SessionStream {
+
+    final int id;
+    private final SessionMultiplexer mux;
+
+    // Inbound
+    private final Object inLock = new Object();
+    private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private int headOffset = 0;
+    private int buffered = 0;
+    private int consumedSinceUpdate = 0;
+    private boolean remoteClosed = false;
+
+    // Outbound
+    private final Object outLock = new Object();
+    private int credit = SessionMultiplexer.STREAM_WINDOW;
+    private boolean localClosed = false;
+    private boolean resetSent = false;
+    private boolean remoteReset = false;
+
+    private final InputStream is = new StreamInput();
+    private final OutputStream os = new StreamOutput();
+
+    SessionStream(SessionMultiplexer mux, int id) {
+        this.mux = mux;
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public InputStream getInputStream() {
+        return is;
+    }
+
+    public OutputStream getOutputStream() {
+        return os;
+    }
+
+    /**
+     * Closes both directions, remaining received data is discarded
+     */
+    public void close() throws IOException {
+        closeOutbound(true);
+        synchronized (inLock) {
+            received.clear();
+            buffered = 0;
+            remoteClosed = true;
+            inLock.notifyAll();
+        }
+        mux.onStreamClosed(this);
+    }
+
+    /**
+     * @param reset whether the inbound direction is closed as well and the remote should stop writing
+     */
+    private void closeOutbound(boolean reset) throws IOException {
+        synchronized (outLock) {
+            if (localClosed && (!reset || resetSent)) return;
+            localClosed = true;
+            resetSent |= reset;
+            outLock.notifyAll();
+        }
+        mux.writeFrame(SessionMultiplexer.FRAME_CLOSE, id, null, 0, reset ? 1 : 0, true);
+    }
+
+    /**
+     * @return false if the remote sent more than the window allows
+     */
+    boolean onData(byte[] data) {
+        synchronized (inLock) {
+            if (remoteClosed) return true;
+            if (buffered + data.length > SessionMultiplexer.STREAM_WINDOW) return false;
+            received.add(data);
+            buffered += data.length;
+            inLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Drops the stream without writing anything, used when the remote broke the protocol
+     */
+    void abort() {
+        synchronized (inLock) {
+            received.clear();
+            buffered = 0;
+            remoteClosed = true;
+            inLock.notifyAll();
+        }
+        synchronized (outLock) {
+            localClosed = true;
+            resetSent = true;
+            outLock.notifyAll();
+        }
+        mux.onStreamClosed(this);
+    }
+
+    void onRemoteClosed() {
+        synchronized (inLock) {
+            remoteClosed = true;
+            inLock.notifyAll();
+        }
+        synchronized (outLock) {
+            if (localClosed) mux.onStreamClosed(this);
+        }
+    }
+
+    void onRemoteReset() {
+        synchronized (outLock) {
+            remoteReset = true;
+            outLock.notifyAll();
+        }
+    }
+
+    void onWindowUpdate(int increment) {
+        synchronized (outLock) {
+            credit += increment;
+            outLock.notifyAll();
+        }
+    }
+
+    private class StreamInput extends InputStream {
+        @Override
+        public int read(@NotNull byte[] bytes, int offset, int length) throws IOException {
+            if (length <= 0) return 0;
+            int update = 0;
+            int read = 0;
+            synchronized (inLock) {
+                while (buffered == 0) {
+                    if (remoteClosed) return -1;
+                    try {
+                        inLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Thread interrupted while waiting for data", e);
+                    }
+                }
+
+                while (read < length && !received.isEmpty()) {
+                    final byte[] head = received.peek();
+                    final int n = Math.min(length - read, head.length - headOffset);
+                    System.arraycopy(head, headOffset, bytes, offset + read, n);
+                    read += n;
+                    headOffset += n;
+                    if (headOffset == head.length) {
+                        received.poll();
+                        headOffset = 0;
+                    }
+                }
+                buffered -= read;
+
+                consumedSinceUpdate += read;
+                if (consumedSinceUpdate >= SessionMultiplexer.STREAM_WINDOW / 2 && !remoteClosed) {
+                    update = consumedSinceUpdate;
+                    consumedSinceUpdate = 0;
+                }
+            }
+            if (update > 0) mux.writeFrame(SessionMultiplexer.FRAME_WINDOW_UPDATE, id, null, 0, update, true);
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int available() {
+            synchronized (inLock) {
+                return buffered;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            SessionStream.this.close();
+        }
+    }
+
+    private class StreamOutput extends OutputStream {
+        @Override
+        public void write(@NotNull byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int n;
+                synchronized (outLock) {
+                    while (credit == 0 && !localClosed && !remoteReset) {
+                        try {
+                            outLock.wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException("Thread interrupted while waiting for stream window", e);
+                        }
+                    }
+                    if (localClosed) throw new IOException("Stream is closed");
+                    if (remoteReset) throw new IOException("Stream was closed by remote");
+                    n = Math.min(Math.min(length, credit), SessionMultiplexer.MAX_FRAME_DATA);
+                    credit -= n;
+                }
+                mux.writeFrame(SessionMultiplexer.FRAME_DATA, id, bytes, offset, n, false);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mux.flush();
+        }
+
+        /**
+         * Closes only the outbound direction, the remote reads end of stream
+         */
+        @Override
+        public void close() throws IOException {
+            closeOutbound(false);
+            synchronized (inLock) {
+                if (remoteClosed) mux.onStreamClosed(SessionStream.this);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+package jsmith.nknsdk.network.session;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spreads packets over all available paths, each path is chosen with probability proportional to its expected throughput,
+ * estimated from free window, rtt and loss rate. Paths without rtt measurement are weighted as the fastest measured one.
+ */
+public class WeightedPathScheduler implements PathScheduler {
+
+    private static final int MIN_RTT = 10;
+
+    @Override
+    public int choose(List<Path> paths) {
+        int fastest = Integer.MAX_VALUE;
+        for (Path p : paths) {
+            if (p.srtt >= 0) fastest = Math.min(fastest, p.srtt);
+        }
+        if (fastest == Integer.MAX_VALUE) fastest = MIN_RTT;
+
+        double total = 0;
+        for (Path p : paths) {
+            total += weight(p, fastest);
+        }
+
+        double r = ThreadLocalRandom.current().nextDouble() * total;
+        for (int i = 0; i < paths.size(); i++) {
+            r -= weight(paths.get(i), fastest);
+            if (r < 0) return i;
+        }
+        return paths.size() - 1;
+    }
+
+    private static double weight(Path p, int fastest) {
+        final double delivered = (1 - p.lossRate) * (1 - p.lossRate);
+        return Math.max(1, p.freeWindow) * delivered / Math.max(MIN_RTT, p.srtt < 0 ? fastest : p.srtt);
+    }
+
+}
@@ -0,0 +1,91 @@
+package jsmith.nknsdk.wallet;
+
+import com.google.protobuf.ByteString;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of computed box shared keys, keyed by the remote ed25519 public key.
+ * Least recently used keys are evicted first once the capacity is reached.
+ */
+public class SharedKeyCache {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final Object lock = new Object();
+    private int capacity;
+    private final LinkedHashMap<ByteString, byte[]> keys;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    SharedKeyCache(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Capacity must be non-negative number");
+        this.capacity = capacity;
+        this.keys = new LinkedHashMap<ByteString, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteString, byte[]> eldest) {
+                return size() > SharedKeyCache.this.capacity;
+            }
+        };
+    }
+
+    byte[] get(ByteString publicKey) {
+        final byte[] shared;
+        synchronized (lock) {
+            shared = keys.get(publicKey);
+        }
+        if (shared == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return shared;
+    }
+
+    void put(ByteString publicKey, byte[] sharedKey) {
+        synchronized (lock) {
+            if (capacity == 0) return;
+            keys.put(publicKey, sharedKey);
+        }
+    }
+
+    public int getCapacity() {
+        synchronized (lock) {
+            return capacity;
+        }
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Capacity must be non-negative number");
+        synchronized (lock) {
+            this.capacity = capacity;
+            while (keys.size() > capacity) {
+                keys.remove(keys.keySet().iterator().next());
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return keys.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            keys.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+}
@@ -43,6 +43,7 @@ public class Wallet {
     private byte[] curveSecret;
     private byte[] seed;
     private String contractDataStr = "";
+    private final SharedKeyCache sharedKeyCache = new SharedKeyCache(SharedKeyCache.DEFAULT_CAPACITY);
 
     private final static EdDSAParameterSpec ED25519 = EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
 
@@ -235,7 +236,6 @@ public class Wallet {
 
     public byte[] getSharedKey(String otherFullIdentifier) {
         // TODO name service lookup
-        // TODO cache
         byte[] pk;
         try {
             pk = Hex.decode(otherFullIdentifier.substring(otherFullIdentifier.lastIndexOf('.') + 1));
@@ -245,14 +245,23 @@ public class Wallet {
             return null; // Invalid identifier
         }
 
+        final ByteString pkKey = ByteString.copyFrom(pk);
+        final byte[] cached = sharedKeyCache.get(pkKey);
+        if (cached != null) return cached;
+
         final byte[] curvePublic = EdToCurve.convertPublicKey(pk);
         if (curvePublic == null) return null; // Invalid key
 
         final byte[] shared = new byte[32];
         TweetNaclFast.crypto_box_beforenm(shared, curvePublic, curveSecret);
 
+        sharedKeyCache.put(pkKey, shared);
         return shared;
 
     }
 
+    public SharedKeyCache getSharedKeyCache() {
+        return sharedKeyCache;
+    }
+
 }
@@ -43,6 +43,7 @@ import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -472,7 +473,8 @@ public abstract class WebSocketClient extends AbstractWebSocket implements Runna
 
 
 			istream = socket.getInputStream();
-			ostream = socket.getOutputStream();
+			// Buffered, so that frames drained together by the write thread leave in a single write on flush
+			ostream = new BufferedOutputStream( socket.getOutputStream(), 16384 );
 
 			sendHandshake();
 		} catch ( IOException | SecurityException | UnresolvedAddressException | InvalidHandshakeException e ) {
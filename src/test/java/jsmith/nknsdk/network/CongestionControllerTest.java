@@ -0,0 +1,77 @@
+package jsmith.nknsdk.network;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class CongestionControllerTest {
+
+    @Test
+    void aimdGrowsAndHalves() {
+        final AimdCongestionController aimd = new AimdCongestionController(16);
+        aimd.onAck(100);
+        assertEquals(17, aimd.getWindow());
+        aimd.onLoss(100);
+        assertEquals(8, aimd.getWindow());
+    }
+
+    @Test
+    void aimdWindowIsClamped() {
+        final AimdCongestionController aimd = new AimdCongestionController(ClientMessageWorker.MAX_CONNECTION_WINSIZE);
+        aimd.onAck(100);
+        assertEquals(ClientMessageWorker.MAX_CONNECTION_WINSIZE, aimd.getWindow());
+
+        assertEquals(ClientMessageWorker.MIN_CONNECTION_WINSIZE, new AimdCongestionController(0).getWindow());
+    }
+
+    @Test
+    void cubicSlowStartsAndBacksOffByBeta() {
+        final CubicCongestionController cubic = new CubicCongestionController(16);
+        cubic.onAck(100);
+        assertEquals(17, cubic.getWindow());
+        cubic.onLoss(100);
+        assertEquals(11, cubic.getWindow()); // 17 * 0.7
+    }
+
+    @Test
+    void delayBasedBacksOffByQuarter() {
+        final DelayBasedCongestionController delay = new DelayBasedCongestionController(16);
+        delay.onLoss(100);
+        assertEquals(12, delay.getWindow());
+    }
+
+    @Test
+    void burstLossReducesOnce() {
+        final CongestionController[] controllers = {
+                new AimdCongestionController(16),
+                new CubicCongestionController(16),
+                new DelayBasedCongestionController(16)
+        };
+        for (CongestionController controller : controllers) {
+            controller.onLoss(100);
+            final int afterFirstLoss = controller.getWindow();
+            for (int i = 0; i < 10; i++) controller.onLoss(100);
+            assertEquals(afterFirstLoss, controller.getWindow(), controller.getClass().getSimpleName());
+        }
+    }
+
+    @Test
+    void lossEpochLastsOneRtt() {
+        final LossEpoch epoch = new LossEpoch();
+        assertTrue(epoch.onLoss(1000, 100));
+        assertFalse(epoch.onLoss(1050, 100));
+        assertTrue(epoch.onLoss(1100, 100));
+    }
+
+    @Test
+    void lossEpochUsesInitialRtoWithoutSamples() {
+        final LossEpoch epoch = new LossEpoch();
+        assertTrue(epoch.onLoss(1000, -1));
+        assertFalse(epoch.onLoss(1000 + ClientMessageWorker.INITIAL_RTO - 1, -1));
+        assertTrue(epoch.onLoss(1000 + ClientMessageWorker.INITIAL_RTO, -1));
+    }
+
+}
@@ -0,0 +1,61 @@
+package jsmith.nknsdk.network;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class RttEstimatorTest {
+
+    @Test
+    void startsWithInitialRto() {
+        final RttEstimator rtt = new RttEstimator();
+        assertEquals(ClientMessageWorker.INITIAL_RTO, rtt.getRto());
+        assertEquals(-1, rtt.getSrtt());
+    }
+
+    @Test
+    void followsRfc6298() {
+        final RttEstimator rtt = new RttEstimator();
+        rtt.onSample(100); // srtt = 100, rttvar = 50
+        assertEquals(100, rtt.getSrtt());
+        assertEquals(300, rtt.getRto());
+
+        rtt.onSample(100); // rttvar = 37.5
+        assertEquals(100, rtt.getSrtt());
+        assertEquals(250, rtt.getRto());
+    }
+
+    @Test
+    void ignoresInvalidSamples() {
+        final RttEstimator rtt = new RttEstimator();
+        rtt.onSample(-1);
+        assertEquals(-1, rtt.getSrtt());
+        assertEquals(ClientMessageWorker.INITIAL_RTO, rtt.getRto());
+    }
+
+    @Test
+    void clampsRto() {
+        final RttEstimator fast = new RttEstimator();
+        fast.onSample(1);
+        assertEquals(ClientMessageWorker.MIN_RTO, fast.getRto());
+
+        final RttEstimator slow = new RttEstimator();
+        slow.onSample(ClientMessageWorker.MAX_RTO * 2);
+        assertEquals(ClientMessageWorker.MAX_RTO, slow.getRto());
+    }
+
+    @Test
+    void backsOffOncePerRto() {
+        final RttEstimator rtt = new RttEstimator();
+        rtt.onSample(100);
+        rtt.onTimeout();
+        assertEquals(600, rtt.getRto());
+
+        rtt.onTimeout(); // Same window of expired packets
+        assertEquals(600, rtt.getRto());
+    }
+
+}
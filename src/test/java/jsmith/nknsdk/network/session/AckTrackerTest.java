@@ -0,0 +1,73 @@
+package jsmith.nknsdk.network.session;
+
+import jsmith.nknsdk.network.proto.MessagesP;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class AckTrackerTest {
+
+    private static MessagesP.SessionData.Builder drain(AckTracker acks, int maxRanges) {
+        final MessagesP.SessionData.Builder packet = MessagesP.SessionData.newBuilder();
+        acks.drainTo(packet, maxRanges);
+        return packet;
+    }
+
+    @Test
+    void mergesAdjacentSequenceIds() {
+        final AckTracker acks = new AckTracker();
+        acks.add(1);
+        acks.add(3);
+        acks.add(2); // Joins both neighbours
+        acks.add(5);
+
+        final MessagesP.SessionData.Builder packet = drain(acks, AckTracker.MAX_RANGES_PER_PACKET);
+        assertEquals(Arrays.asList(1, 5), packet.getAckStartSeqList());
+        assertEquals(Arrays.asList(3, 1), packet.getAckSeqCountList());
+        assertTrue(acks.isEmpty());
+    }
+
+    @Test
+    void ignoresDuplicates() {
+        final AckTracker acks = new AckTracker();
+        acks.add(4);
+        acks.add(5);
+        acks.add(4);
+
+        final MessagesP.SessionData.Builder packet = drain(acks, AckTracker.MAX_RANGES_PER_PACKET);
+        assertEquals(Arrays.asList(4), packet.getAckStartSeqList());
+        assertEquals(Arrays.asList(2), packet.getAckSeqCountList());
+    }
+
+    @Test
+    void drainsAtMostMaxRangesLowestFirst() {
+        final AckTracker acks = new AckTracker();
+        for (int i = 0; i < AckTracker.MAX_RANGES_PER_PACKET + 5; i++) {
+            acks.add(i * 2 + 1); // No two are adjacent
+        }
+
+        final MessagesP.SessionData.Builder first = drain(acks, AckTracker.MAX_RANGES_PER_PACKET);
+        assertEquals(AckTracker.MAX_RANGES_PER_PACKET, first.getAckStartSeqCount());
+        assertEquals(1, first.getAckStartSeq(0));
+        assertFalse(acks.isEmpty());
+
+        final MessagesP.SessionData.Builder rest = drain(acks, AckTracker.MAX_RANGES_PER_PACKET);
+        assertEquals(5, rest.getAckStartSeqCount());
+        assertEquals(AckTracker.MAX_RANGES_PER_PACKET * 2 + 1, rest.getAckStartSeq(0));
+        assertTrue(acks.isEmpty());
+    }
+
+    @Test
+    void drainingEmptyAddsNothing() {
+        final AckTracker acks = new AckTracker();
+        final MessagesP.SessionData.Builder packet = MessagesP.SessionData.newBuilder();
+        assertFalse(acks.drainTo(packet, AckTracker.MAX_RANGES_PER_PACKET));
+        assertEquals(0, packet.getAckStartSeqCount());
+    }
+
+}
@@ -0,0 +1,82 @@
+package jsmith.nknsdk.network.session;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class ChunkFragmentsTest {
+
+    private static ByteString randomData(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return ByteString.copyFrom(data);
+    }
+
+    @Test
+    void lostOversizedChunkIsResentInConfirmedPieces() {
+        final MtuProber prober = new MtuProber(1024, 64 * 1024);
+        for (int i = 0; i < MtuProber.ACKS_TO_GROW; i++) prober.onAcked(1024, false);
+        assertEquals(2048, prober.getMtu());
+
+        final ByteString chunk = randomData(2048);
+        prober.onLost(chunk.size());
+        assertEquals(1024, prober.getConfirmed());
+
+        final List<ByteString> pieces = ChunkFragments.split(chunk, prober.getConfirmed());
+        assertEquals(2, pieces.size());
+        for (ByteString piece : pieces) assertTrue(piece.size() <= prober.getConfirmed());
+
+        final ChunkFragments fragments = new ChunkFragments();
+        assertNull(fragments.onFragment(7, chunk.size(), 1024, pieces.get(1)));
+        assertEquals(chunk, fragments.onFragment(7, chunk.size(), 0, pieces.get(0)));
+    }
+
+    @Test
+    void splitKeepsRemainderInLastPiece() {
+        final List<ByteString> pieces = ChunkFragments.split(randomData(2500), 1000);
+        assertEquals(3, pieces.size());
+        assertEquals(1000, pieces.get(0).size());
+        assertEquals(1000, pieces.get(1).size());
+        assertEquals(500, pieces.get(2).size());
+    }
+
+    @Test
+    void duplicatePiecesDontCompleteChunk() {
+        final ByteString chunk = randomData(3000);
+        final List<ByteString> pieces = ChunkFragments.split(chunk, 1000);
+
+        final ChunkFragments fragments = new ChunkFragments();
+        assertNull(fragments.onFragment(3, chunk.size(), 0, pieces.get(0)));
+        assertNull(fragments.onFragment(3, chunk.size(), 0, pieces.get(0)));
+        assertNull(fragments.onFragment(3, chunk.size(), 2000, pieces.get(2)));
+        assertEquals(chunk, fragments.onFragment(3, chunk.size(), 1000, pieces.get(1)));
+    }
+
+    @Test
+    void ignoresPieceOutsideOfChunk() {
+        final ChunkFragments fragments = new ChunkFragments();
+        assertNull(fragments.onFragment(1, 100, 90, randomData(20)));
+        assertNull(fragments.onFragment(1, 100, -1, randomData(10)));
+        assertNull(fragments.onFragment(1, SessionHandler.MAX_MTU + 1, 0, randomData(10)));
+        assertNull(fragments.onFragment(1, 100, 0, ByteString.EMPTY));
+    }
+
+    @Test
+    void dropsOldestAssemblyWhenFull() {
+        final ChunkFragments fragments = new ChunkFragments();
+        final ByteString chunk = randomData(20);
+        for (int seq = 1; seq <= ChunkFragments.MAX_PENDING + 1; seq++) {
+            assertNull(fragments.onFragment(seq, chunk.size(), 0, chunk.substring(0, 10)));
+        }
+        assertNull(fragments.onFragment(1, chunk.size(), 10, chunk.substring(10))); // Started over, dropping 2 in turn
+        assertEquals(chunk, fragments.onFragment(3, chunk.size(), 10, chunk.substring(10)));
+    }
+
+}
@@ -0,0 +1,83 @@
+package jsmith.nknsdk.network.session;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class ChunkReorderBufferTest {
+
+    private static ByteString chunk(int seq) {
+        return ByteString.copyFromUtf8("chunk" + seq);
+    }
+
+    @Test
+    void deliversInOrder() {
+        final ChunkReorderBuffer buffer = new ChunkReorderBuffer(1, 16);
+        buffer.put(3, chunk(3));
+        buffer.put(2, chunk(2));
+        assertNull(buffer.pollNext());
+
+        buffer.put(1, chunk(1));
+        assertEquals(chunk(1), buffer.pollNext());
+        assertEquals(chunk(2), buffer.pollNext());
+        assertEquals(chunk(3), buffer.pollNext());
+        assertNull(buffer.pollNext());
+        assertEquals(4, buffer.getNextSequenceId());
+    }
+
+    @Test
+    void detectsDuplicates() {
+        final ChunkReorderBuffer buffer = new ChunkReorderBuffer(1, 16);
+        buffer.put(2, chunk(2));
+        assertTrue(buffer.contains(2));
+        assertFalse(buffer.contains(1));
+
+        buffer.put(2, ByteString.copyFromUtf8("other"));
+        assertEquals(chunk(2).size(), buffer.getBytes());
+
+        buffer.put(1, chunk(1));
+        buffer.pollNext();
+        assertTrue(buffer.contains(1)); // Already delivered
+    }
+
+    @Test
+    void countsBufferedBytes() {
+        final ChunkReorderBuffer buffer = new ChunkReorderBuffer(1, 16);
+        buffer.put(2, chunk(2));
+        buffer.put(3, chunk(3));
+        assertEquals(chunk(2).size() + chunk(3).size(), buffer.getBytes());
+
+        buffer.put(1, chunk(1));
+        for (int i = 0; i < 3; i++) buffer.pollNext();
+        assertEquals(0, buffer.getBytes());
+    }
+
+    @Test
+    void growsAndKeepsBufferedChunks() {
+        final ChunkReorderBuffer buffer = new ChunkReorderBuffer(1, 4);
+        buffer.put(5, chunk(5));
+        buffer.put(100, chunk(100)); // Past the initial capacity
+        for (int seq = 1; seq < 100; seq++) {
+            if (seq != 5) buffer.put(seq, chunk(seq));
+        }
+        for (int seq = 1; seq <= 100; seq++) {
+            assertEquals(chunk(seq), buffer.pollNext());
+        }
+    }
+
+    @Test
+    void wrapsAround() {
+        final ChunkReorderBuffer buffer = new ChunkReorderBuffer(1, 16);
+        for (int seq = 1; seq <= 1000; seq += 2) {
+            buffer.put(seq + 1, chunk(seq + 1));
+            buffer.put(seq, chunk(seq));
+            assertEquals(chunk(seq), buffer.pollNext());
+            assertEquals(chunk(seq + 1), buffer.pollNext());
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package jsmith.nknsdk.network.session;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class FecTest {
+
+    private static Session.DataChunk chunk(int seq) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < seq * 7; i++) sb.append((char) ('a' + (seq + i) % 26)); // Every chunk has a different length
+        return new Session.DataChunk(seq, ByteString.copyFromUtf8(sb.toString()));
+    }
+
+    private static List<ByteString> encodeGroup(FecEncoder encoder, int firstSeq, int count, int parityCount) {
+        List<ByteString> parities = null;
+        for (int seq = firstSeq; seq < firstSeq + count; seq++) {
+            parities = encoder.onChunkSent(chunk(seq), 0, count, parityCount);
+            if (seq < firstSeq + count - 1) assertNull(parities);
+        }
+        assertNotNull(parities);
+        assertEquals(Math.min(count, parityCount), parities.size());
+        return parities;
+    }
+
+    private static ByteString encodeGroup(FecEncoder encoder, int firstSeq, int count) {
+        return encodeGroup(encoder, firstSeq, count, 1).get(0);
+    }
+
+    @Test
+    void rebuildsSingleLostChunk() {
+        final ByteString parity = encodeGroup(new FecEncoder(), 1, 4);
+        assertNotNull(parity);
+
+        final FecDecoder decoder = new FecDecoder();
+        final Map<Integer, ByteString> recovered = new HashMap<>();
+        for (int seq : new int[] {1, 2, 4}) decoder.onChunk(seq, chunk(seq).data, recovered::put);
+        assertTrue(recovered.isEmpty());
+
+        decoder.onParity(parity, recovered::put);
+        assertEquals(1, recovered.size());
+        assertEquals(chunk(3).data, recovered.get(3));
+    }
+
+    @Test
+    void rebuildsWhenParityArrivesFirst() {
+        final ByteString parity = encodeGroup(new FecEncoder(), 1, 3);
+
+        final FecDecoder decoder = new FecDecoder();
+        final Map<Integer, ByteString> recovered = new HashMap<>();
+        decoder.onParity(parity, recovered::put);
+        decoder.onChunk(2, chunk(2).data, recovered::put);
+        assertTrue(recovered.isEmpty());
+        decoder.onChunk(3, chunk(3).data, recovered::put);
+
+        assertEquals(chunk(1).data, recovered.get(1));
+    }
+
+    @Test
+    void cannotRebuildTwoLostChunks() {
+        final ByteString parity = encodeGroup(new FecEncoder(), 1, 4);
+
+        final FecDecoder decoder = new FecDecoder();
+        final Map<Integer, ByteString> recovered = new HashMap<>();
+        decoder.onChunk(1, chunk(1).data, recovered::put);
+        decoder.onChunk(4, chunk(4).data, recovered::put);
+        decoder.onParity(parity, recovered::put);
+
+        assertTrue(recovered.isEmpty());
+    }
+
+    @Test
+    void rebuildsBurstWithInterleavedParities() {
+        final List<ByteString> parities = encodeGroup(new FecEncoder(), 1, 8, 3);
+
+        final FecDecoder decoder = new FecDecoder();
+        final Map<Integer, ByteString> recovered = new HashMap<>();
+        for (int seq : new int[] {1, 2, 6, 7, 8}) decoder.onChunk(seq, chunk(seq).data, recovered::put);
+        for (ByteString parity : parities) decoder.onParity(parity, recovered::put);
+
+        assertEquals(3, recovered.size());
+        for (int seq = 3; seq <= 5; seq++) assertEquals(chunk(seq).data, recovered.get(seq));
+    }
+
+    @Test
+    void cannotRebuildTwoLostChunksOfOneParity() {
+        final List<ByteString> parities = encodeGroup(new FecEncoder(), 1, 6, 2);
+
+        final FecDecoder decoder = new FecDecoder();
+        final Map<Integer, ByteString> recovered = new HashMap<>();
+        for (int seq : new int[] {2, 4, 5, 6}) decoder.onChunk(seq, chunk(seq).data, recovered::put); // 1 and 3 share a parity
+        for (ByteString parity : parities) decoder.onParity(parity, recovered::put);
+
+        assertTrue(recovered.isEmpty());
+    }
+
+    @Test
+    void flushSendsOnlyParitiesOfStartedLanes() {
+        final FecEncoder encoder = new FecEncoder();
+        encoder.onChunkSent(chunk(1), 0, 8, 4);
+        encoder.onChunkSent(chunk(2), 0, 8, 4);
+        final List<ByteString> parities = encoder.flush();
+        assertEquals(2, parities.size());
+
+        final FecDecoder decoder = new FecDecoder();
+        final Map<Integer, ByteString> recovered = new HashMap<>();
+        for (ByteString parity : parities) decoder.onParity(parity, recovered::put);
+        assertEquals(chunk(1).data, recovered.get(1));
+        assertEquals(chunk(2).data, recovered.get(2));
+    }
+
+    @Test
+    void nothingToRebuildWithoutLoss() {
+        final ByteString parity = encodeGroup(new FecEncoder(), 1, 2);
+
+        final FecDecoder decoder = new FecDecoder();
+        final Map<Integer, ByteString> recovered = new HashMap<>();
+        decoder.onChunk(1, chunk(1).data, recovered::put);
+        decoder.onChunk(2, chunk(2).data, recovered::put);
+        decoder.onParity(parity, recovered::put);
+
+        assertTrue(recovered.isEmpty());
+    }
+
+    @Test
+    void ignoresMalformedParity() {
+        final FecDecoder decoder = new FecDecoder();
+        decoder.onParity(ByteString.copyFrom(new byte[] {(byte) 0xFF}), (seq, data) -> fail("Nothing can be recovered"));
+    }
+
+    @Test
+    void nonConsecutiveChunkStartsNewGroup() {
+        final FecEncoder encoder = new FecEncoder();
+        assertNull(encoder.onChunkSent(chunk(1), 0, 2, 1));
+        final ByteString parity = encodeGroup(encoder, 5, 2); // Chunk 1 is not part of it
+
+        final FecDecoder decoder = new FecDecoder();
+        final Map<Integer, ByteString> recovered = new HashMap<>();
+        decoder.onChunk(6, chunk(6).data, recovered::put);
+        decoder.onParity(parity, recovered::put);
+        assertEquals(chunk(5).data, recovered.get(5));
+    }
+
+    @Test
+    void flushNeedsAtLeastTwoChunks() {
+        final FecEncoder encoder = new FecEncoder();
+        assertNull(encoder.flush());
+        encoder.onChunkSent(chunk(1), 0, 8, 1);
+        assertNull(encoder.flush());
+        encoder.onChunkSent(chunk(2), 0, 8, 1);
+        assertEquals(1, encoder.flush().size());
+    }
+
+    @Test
+    void tracksMainPathOfGroup() {
+        final FecEncoder encoder = new FecEncoder();
+        assertEquals(-1, encoder.getLastGroupMainPath());
+        encoder.onChunkSent(chunk(1), 2, 3, 1);
+        encoder.onChunkSent(chunk(2), 1, 3, 1);
+        assertNotNull(encoder.onChunkSent(chunk(3), 2, 3, 1));
+        assertEquals(2, encoder.getLastGroupMainPath());
+    }
+
+}
@@ -0,0 +1,83 @@
+package jsmith.nknsdk.network.session;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class MtuProberTest {
+
+    private static void ack(MtuProber prober, int chunkSize, int times) {
+        for (int i = 0; i < times; i++) prober.onAcked(chunkSize, false);
+    }
+
+    @Test
+    void startsAtInitialWithinMax() {
+        assertEquals(1024, new MtuProber(1024, 64 * 1024).getMtu());
+        assertEquals(512, new MtuProber(1024, 512).getMtu());
+    }
+
+    @Test
+    void doublesAfterRunOfFullChunks() {
+        final MtuProber prober = new MtuProber(1024, 64 * 1024);
+        ack(prober, 1024, MtuProber.ACKS_TO_GROW - 1);
+        assertEquals(1024, prober.getMtu());
+        ack(prober, 1024, 1);
+        assertEquals(2048, prober.getMtu());
+    }
+
+    @Test
+    void partialAndRetransmittedChunksDontCount() {
+        final MtuProber prober = new MtuProber(1024, 64 * 1024);
+        ack(prober, 100, MtuProber.ACKS_TO_GROW * 2);
+        for (int i = 0; i < MtuProber.ACKS_TO_GROW * 2; i++) prober.onAcked(1024, true);
+        assertEquals(1024, prober.getMtu());
+    }
+
+    @Test
+    void neverExceedsMax() {
+        final MtuProber prober = new MtuProber(1024, 3000);
+        for (int i = 0; i < 10; i++) ack(prober, prober.getMtu(), MtuProber.ACKS_TO_GROW);
+        assertEquals(3000, prober.getMtu());
+    }
+
+    @Test
+    void backsOffAndSettlesBelowLossySize() {
+        final MtuProber prober = new MtuProber(1024, 64 * 1024);
+        ack(prober, 1024, MtuProber.ACKS_TO_GROW);
+        prober.onLost(2048);
+        assertEquals(1024, prober.getMtu());
+
+        ack(prober, 1024, MtuProber.ACKS_TO_GROW);
+        assertEquals(1536, prober.getMtu()); // Halfway to the size that got lost
+
+        ack(prober, 1536, MtuProber.ACKS_TO_GROW);
+        assertEquals(1536, prober.getMtu()); // Next step would be smaller than MIN_STEP
+    }
+
+    @Test
+    void lossOfConfirmedSizeIsCongestion() {
+        final MtuProber prober = new MtuProber(1024, 64 * 1024);
+        ack(prober, 1024, MtuProber.ACKS_TO_GROW);
+        ack(prober, 2048, 1);
+        prober.onLost(2048);
+        assertEquals(2048, prober.getMtu());
+    }
+
+    @Test
+    void probesAgainAfterLongLossFreeRun() {
+        final MtuProber prober = new MtuProber(1024, 64 * 1024);
+        ack(prober, 1024, MtuProber.ACKS_TO_GROW);
+        prober.onLost(2048);
+        ack(prober, 1024, MtuProber.ACKS_TO_GROW);
+        assertEquals(1536, prober.getMtu());
+
+        ack(prober, 1536, MtuProber.ACKS_TO_REPROBE - 1);
+        assertEquals(1536, prober.getMtu());
+        ack(prober, 1536, 1);
+        assertEquals(3072, prober.getMtu());
+    }
+
+}
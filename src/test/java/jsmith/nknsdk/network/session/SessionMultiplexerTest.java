@@ -0,0 +1,165 @@
+package jsmith.nknsdk.network.session;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class SessionMultiplexerTest {
+
+    private static byte[] frame(byte type, int streamId, int length, byte[] data) {
+        final ByteBuffer frame = ByteBuffer.allocate(9 + (data == null ? 0 : data.length));
+        frame.put(type).putInt(streamId).putInt(length);
+        if (data != null) frame.put(data);
+        return frame.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("Condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void transfersStreamsBothWays() throws Exception {
+        // Not piped streams, they break once a thread which wrote to them ends, and window updates are written from pool threads
+        final Pipe toAcceptor = Pipe.open();
+        final Pipe toDialer = Pipe.open();
+        final SessionMultiplexer dialer = new SessionMultiplexer(null, Channels.newInputStream(toDialer.source()), Channels.newOutputStream(toAcceptor.sink()), true, "dialer");
+        final SessionMultiplexer acceptor = new SessionMultiplexer(null, Channels.newInputStream(toAcceptor.source()), Channels.newOutputStream(toDialer.sink()), false, "acceptor");
+
+        final CompletableFuture<SessionStream> accepted = new CompletableFuture<>();
+        acceptor.onStream(accepted::complete);
+        dialer.start();
+        acceptor.start();
+
+        final SessionStream stream = dialer.openStream();
+        assertEquals(1, stream.getId());
+
+        // More than the stream window, so window updates must flow back
+        final byte[] data = new byte[SessionMultiplexer.STREAM_WINDOW * 2 + 123];
+        new Random(1).nextBytes(data);
+        final SessionStream remote = accepted.get(5, TimeUnit.SECONDS);
+        final CompletableFuture<byte[]> received = CompletableFuture.supplyAsync(() -> {
+            try {
+                return readAll(remote.getInputStream());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        stream.getOutputStream().write(data);
+        stream.getOutputStream().close();
+        assertArrayEquals(data, received.get(5, TimeUnit.SECONDS));
+
+        remote.getOutputStream().write(new byte[] {1, 2, 3});
+        remote.getOutputStream().close();
+        assertArrayEquals(new byte[] {1, 2, 3}, readAll(stream.getInputStream()));
+    }
+
+    @Test
+    void streamIdsKeepOpenerParity() throws Exception {
+        final SessionMultiplexer dialer = new SessionMultiplexer(null, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(), true, "dialer");
+        assertEquals(1, dialer.openStream().getId());
+        assertEquals(3, dialer.openStream().getId());
+
+        final SessionMultiplexer acceptor = new SessionMultiplexer(null, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(), false, "acceptor");
+        assertEquals(2, acceptor.openStream().getId());
+        assertEquals(4, acceptor.openStream().getId());
+    }
+
+    @Test
+    void encodesFrameHeader() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final SessionMultiplexer mux = new SessionMultiplexer(null, new ByteArrayInputStream(new byte[0]), out, true, "mux");
+        mux.writeFrame(SessionMultiplexer.FRAME_DATA, 0x01020304, new byte[] {9, 8, 7}, 1, 2, true);
+
+        assertArrayEquals(frame(SessionMultiplexer.FRAME_DATA, 0x01020304, 2, new byte[] {8, 7}), out.toByteArray());
+    }
+
+    @Test
+    void rejectsOpenWithWrongParity() throws Exception {
+        final PipedInputStream in = new PipedInputStream();
+        final PipedOutputStream remote = new PipedOutputStream(in);
+        final SessionMultiplexer acceptor = new SessionMultiplexer(null, in, new ByteArrayOutputStream(), false, "acceptor");
+        final CompletableFuture<SessionStream> accepted = new CompletableFuture<>();
+        acceptor.onStream(accepted::complete);
+        acceptor.start();
+
+        remote.write(frame(SessionMultiplexer.FRAME_OPEN, 2, 0, null)); // Dialer may only open odd ids
+        awaitTrue(acceptor::isClosed);
+        assertFalse(accepted.isDone());
+    }
+
+    @Test
+    void rejectsReusedStreamId() throws Exception {
+        final PipedInputStream in = new PipedInputStream();
+        final PipedOutputStream remote = new PipedOutputStream(in);
+        final SessionMultiplexer acceptor = new SessionMultiplexer(null, in, new ByteArrayOutputStream(), false, "acceptor");
+        final CompletableFuture<SessionStream> accepted = new CompletableFuture<>();
+        acceptor.onStream(accepted::complete);
+        acceptor.start();
+
+        remote.write(frame(SessionMultiplexer.FRAME_OPEN, 3, 0, null));
+        assertEquals(3, accepted.get(5, TimeUnit.SECONDS).getId());
+        assertFalse(acceptor.isClosed());
+
+        remote.write(frame(SessionMultiplexer.FRAME_OPEN, 1, 0, null)); // Lower than already used id
+        awaitTrue(acceptor::isClosed);
+    }
+
+    @Test
+    void resetsStreamOnWindowViolation() throws Exception {
+        final byte[] data = new byte[SessionMultiplexer.MAX_FRAME_DATA];
+        final byte[][] frames = new byte[SessionMultiplexer.STREAM_WINDOW / data.length + 2][];
+        frames[0] = frame(SessionMultiplexer.FRAME_OPEN, 1, 0, null);
+        for (int i = 1; i < frames.length; i++) frames[i] = frame(SessionMultiplexer.FRAME_DATA, 1, data.length, data);
+
+        final PipedInputStream in = new PipedInputStream(1024 * 1024);
+        final PipedOutputStream remote = new PipedOutputStream(in);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final SessionMultiplexer acceptor = new SessionMultiplexer(null, in, out, false, "acceptor");
+        final CompletableFuture<SessionStream> accepted = new CompletableFuture<>();
+        acceptor.onStream(accepted::complete);
+        acceptor.start();
+        remote.write(concat(frames));
+
+        final byte[] reset = frame(SessionMultiplexer.FRAME_CLOSE, 1, 1, null);
+        awaitTrue(() -> Arrays.equals(reset, out.toByteArray()));
+        assertEquals(-1, accepted.get(5, TimeUnit.SECONDS).getInputStream().read());
+        assertFalse(acceptor.isClosed());
+    }
+
+}
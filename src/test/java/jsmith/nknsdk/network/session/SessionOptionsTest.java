@@ -0,0 +1,89 @@
+package jsmith.nknsdk.network.session;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class SessionOptionsTest {
+
+    @Test
+    void roundTripsFeatures() {
+        final SessionOptions options = new SessionOptions();
+        options.features = SessionOptions.FEATURE_FEC | SessionOptions.FEATURE_DEFLATE;
+
+        final SessionOptions decoded = SessionOptions.decode(options.encode());
+        assertTrue(decoded.supports(SessionOptions.FEATURE_FEC));
+        assertTrue(decoded.supports(SessionOptions.FEATURE_DEFLATE));
+        assertFalse(decoded.supports(SessionOptions.FEATURE_EARLY_DATA));
+    }
+
+    @Test
+    void roundTripsEarlyData() {
+        final SessionOptions options = new SessionOptions();
+        options.features = SessionOptions.FEATURE_EARLY_DATA;
+        options.earlyData = ByteString.copyFromUtf8("GET / HTTP/1.1");
+
+        final SessionOptions decoded = SessionOptions.decode(options.encode());
+        assertTrue(decoded.supports(SessionOptions.FEATURE_EARLY_DATA));
+        assertEquals(options.earlyData, decoded.earlyData);
+    }
+
+    @Test
+    void earlyDataIsOptional() {
+        final SessionOptions options = new SessionOptions();
+        options.features = SessionOptions.FEATURE_EARLY_DATA;
+        assertNull(SessionOptions.decode(options.encode()).earlyData);
+    }
+
+    @Test
+    void roundTripsResume() {
+        final SessionOptions options = new SessionOptions();
+        options.features = SessionOptions.FEATURE_RESUME;
+        options.resume = SessionOptions.RESUME_RESPONSE;
+
+        final SessionOptions decoded = SessionOptions.decode(options.encode());
+        assertTrue(decoded.supports(SessionOptions.FEATURE_RESUME));
+        assertEquals(SessionOptions.RESUME_RESPONSE, decoded.resume);
+        assertNull(decoded.earlyData);
+    }
+
+    @Test
+    void plainHandshakeIsNotResume() {
+        final SessionOptions options = new SessionOptions();
+        options.features = SessionOptions.FEATURE_RESUME;
+        assertEquals(0, SessionOptions.decode(options.encode()).resume);
+        assertEquals(0, SessionOptions.decode(ByteString.EMPTY).resume);
+    }
+
+    @Test
+    void emptyDataHasNoFeatures() {
+        final SessionOptions decoded = SessionOptions.decode(ByteString.EMPTY);
+        assertEquals(0, decoded.features);
+        assertNull(decoded.earlyData);
+    }
+
+    @Test
+    void malformedDataHasNoFeatures() {
+        final SessionOptions decoded = SessionOptions.decode(ByteString.copyFrom(new byte[] {0x08, (byte) 0xFF}));
+        assertEquals(0, decoded.features);
+    }
+
+    @Test
+    void skipsUnknownFields() throws IOException {
+        final ByteString.Output out = ByteString.newOutput();
+        final CodedOutputStream cos = CodedOutputStream.newInstance(out);
+        cos.writeString(100, "from the future");
+        cos.writeUInt32(1, SessionOptions.FEATURE_FEC);
+        cos.flush();
+
+        assertTrue(SessionOptions.decode(out.toByteString()).supports(SessionOptions.FEATURE_FEC));
+    }
+
+}
@@ -0,0 +1,66 @@
+package jsmith.nknsdk.wallet;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+class SharedKeyCacheTest {
+
+    private static ByteString key(int i) {
+        return ByteString.copyFrom(new byte[] {(byte) i});
+    }
+
+    @Test
+    void countsHitsAndMisses() {
+        final SharedKeyCache cache = new SharedKeyCache(4);
+        assertNull(cache.get(key(1)));
+        cache.put(key(1), new byte[] {42});
+        assertArrayEquals(new byte[] {42}, cache.get(key(1)));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        final SharedKeyCache cache = new SharedKeyCache(2);
+        cache.put(key(1), new byte[] {1});
+        cache.put(key(2), new byte[] {2});
+        cache.get(key(1)); // 2 is now the least recently used
+        cache.put(key(3), new byte[] {3});
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(key(1)));
+        assertNull(cache.get(key(2)));
+        assertNotNull(cache.get(key(3)));
+    }
+
+    @Test
+    void shrinkingCapacityEvicts() {
+        final SharedKeyCache cache = new SharedKeyCache(4);
+        for (int i = 0; i < 4; i++) cache.put(key(i), new byte[] {(byte) i});
+        cache.setCapacity(1);
+
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(key(3)));
+    }
+
+    @Test
+    void zeroCapacityStoresNothing() {
+        final SharedKeyCache cache = new SharedKeyCache(0);
+        cache.put(key(1), new byte[] {1});
+        assertEquals(0, cache.size());
+        assertNull(cache.get(key(1)));
+    }
+
+    @Test
+    void negativeCapacityIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new SharedKeyCache(-1));
+        assertThrows(IllegalArgumentException.class, () -> new SharedKeyCache(1).setCapacity(-1));
+    }
+
+}